@@ -20,15 +20,167 @@ package uk.ac.open.lts.filecopier;
 
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Queue of copy and delete actions.
+ * <p>
+ * Each watcher (mapping) has its own lane of actions. Lanes are served
+ * round-robin by a small pool of worker threads, with at most one worker on
+ * each lane at a time, so that a long operation on one mapping does not hold
+ * up changes to another.
+ * <p>
+ * Within a lane, actions have a priority: single-file changes from watch
+ * events go first, then new folders, then bulk work (recopies, sync checks,
+ * repairs and large files). An action never overtakes an earlier action on
+ * an overlapping path, and an action that has waited long enough is treated
+ * as top priority so that bulk work still gets done.
+ * <p>
+ * Watcher threads never take a lock that the scheduler or workers hold: new
+ * actions go into a lock-free inbox and the scheduler thread is unparked. Only
+ * the scheduler thread touches the lanes. It parks until the next action is
+ * due or until something arrives. Tickets for waiting on actions are issued
+ * and counted without locks too; only callers of
+ * {@link #waitForTicket(long, long)} block.
+ */
 public class ActionQueue extends Thread
 {
 	/** 
 	 * Delay this many ms to allow events to be grouped together. 
 	 */
 	private final static long ACTION_DELAY = 100;
-	
-	private LinkedList<Action> queue = new LinkedList<Action>();
+
+	/**
+	 * Maximum number of worker threads (and so number of mappings that can be
+	 * updated at the same time).
+	 */
+	private final static int MAX_WORKERS = 4;
+
+	/**
+	 * Number of actions at the start of a lane that are considered when looking
+	 * for one that is due.
+	 */
+	private final static int LOOKAHEAD = 64;
+
+	/**
+	 * Actions that have waited this many ms since they were due are treated as
+	 * the highest priority.
+	 */
+	private final static long MAX_PRIORITY_WAIT = 5000;
+
+	/**
+	 * Priority of an action within its lane, highest first.
+	 */
+	public enum Priority
+	{
+		/** Single-file changes that someone is probably waiting for */
+		INTERACTIVE,
+		/** New folders */
+		FOLDER,
+		/** Recopies, sync checks, repairs and large files */
+		BULK
+	}
+
+	/**
+	 * Why an action couldn't be finished and should be tried again later, with
+	 * how long to wait. The wait doubles after each attempt, up to a limit.
+	 */
+	public enum Retry
+	{
+		/** Source file locked by another program, e.g. antivirus or an IDE */
+		LOCKED(100, 5000, 10),
+		/** Error writing to the target, e.g. network drive briefly unavailable */
+		TARGET(1000, 30000, 6),
+		/**
+		 * Files changed while a folder was being copied; waits for things to
+		 * settle before copying just those files again
+		 */
+		PARTIAL(2000, 30000, 5);
+
+		private final long firstDelay, maxDelay;
+		private final int maxAttempts;
+
+		private Retry(long firstDelay, long maxDelay, int maxAttempts)
+		{
+			this.firstDelay = firstDelay;
+			this.maxDelay = maxDelay;
+			this.maxAttempts = maxAttempts;
+		}
+
+		/**
+		 * @param attempt Number of retries so far
+		 * @return Time in ms to wait before the next one
+		 */
+		long getDelay(int attempt)
+		{
+			return Math.min(maxDelay, firstDelay << Math.min(attempt, 20));
+		}
+
+		/**
+		 * @param attempt Number of retries so far
+		 * @return True if another is allowed
+		 */
+		boolean allows(int attempt)
+		{
+			return attempt < maxAttempts;
+		}
+	}
+
+	/** New actions from any thread, waiting to be put into lanes */
+	private ConcurrentLinkedQueue<Action> inbox = new ConcurrentLinkedQueue<Action>();
+
+	/** Actions that workers have finished running */
+	private ConcurrentLinkedQueue<Action> done = new ConcurrentLinkedQueue<Action>();
+
+	/**
+	 * Lanes in round-robin order; the lane that was served most recently is moved
+	 * to the end. Only used on the scheduler thread.
+	 */
+	private LinkedList<Lane> lanes = new LinkedList<Lane>();
+
+	private Map<Client, Lane> laneMap = new HashMap<Client, Lane>();
+
+	private Clock clock;
+
+	/**
+	 * Tickets of actions that are not done yet, with a count for each, so that
+	 * callers can wait for everything added before a point. A ticket is only
+	 * shared by something that already holds it, so once its count reaches
+	 * zero it is removed and never comes back.
+	 */
+	private ConcurrentSkipListMap<Long, AtomicInteger> outstanding =
+		new ConcurrentSkipListMap<Long, AtomicInteger>();
+
+	private AtomicLong nextTicket = new AtomicLong(1);
+
+	/**
+	 * Threads in {@link #waitForTicket(long, long)}, unparked when a ticket is done.
+	 */
+	private Queue<Thread> ticketWaiters = new ConcurrentLinkedQueue<Thread>();
+
+	/**
+	 * Ticket of the action running on a worker thread. Actions it queues
+	 * share the ticket, so that waiting for it waits for them too.
+	 */
+	private ThreadLocal<Long> runningTicket = new ThreadLocal<Long>();
+
+	private int running = 0;
+
+	private boolean busy = false;
+
+	private ExecutorService workers = Executors.newFixedThreadPool(MAX_WORKERS,
+		new ThreadFactory()
+		{
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				return new Thread(r, "Action queue " + count.incrementAndGet());
+			}
+		});
 	
 	private Handler handler;
 
@@ -38,16 +190,16 @@ public class ActionQueue extends Thread
 	public interface Handler
 	{
 		/**
-		 * Called when the ActionQueue is idle.
+		 * Called when the ActionQueue becomes busy.
 		 * 
-		 * Called from the action queue thread. 
+		 * Called from an action queue thread. 
 		 */
 		public void markBusy();
 		
 		/**
 		 * Called when the ActionQueue is idle.
 		 * 
-		 * Called from the action queue thread. 
+		 * Called from an action queue thread. 
 		 */
 		public void markIdle();
 
@@ -57,48 +209,301 @@ public class ActionQueue extends Thread
 		public void markError();
 	}
 
+	/**
+	 * Something whose actions are carried out by the queue (a watcher).
+	 * Methods apart from getNum and getPaths are called on worker threads.
+	 */
+	public interface Client
+	{
+		/**
+		 * @return Number shown in output
+		 */
+		public int getNum();
+
+		/**
+		 * @return Root of the tree of paths used for actions
+		 */
+		public PathNode getPaths();
+
+		/**
+		 * Starts deleting and re-copying a path.
+		 * @param path Relative path
+		 * @param only Only target to copy to, or null for all targets
+		 * @return Copy in progress
+		 */
+		public Copy startCopy(Path path, Target only);
+
+		/**
+		 * Carries on with a copy that an earlier run didn't finish, or starts it
+		 * from scratch if its progress has gone.
+		 * @param path Relative path
+		 * @param only Only target to copy to, or null for all targets
+		 * @return Copy in progress
+		 */
+		public Copy resumeCopy(Path path, Target only);
+
+		/**
+		 * Deletes a path.
+		 * @param path Relative path
+		 * @param only Only target to delete from, or null for all targets
+		 * @return True if completed without error
+		 */
+		public boolean delete(Path path, Target only);
+
+		/**
+		 * Checks whether targets are in sync, queueing actions to fix them.
+		 * @return True if completed without error
+		 */
+		public boolean checkSync();
+	}
+
+	/**
+	 * A copy which may be carried out in several chunks.
+	 */
+	public interface Copy
+	{
+		/**
+		 * Carries out the next chunk of the copy.
+		 * @return True if completed without error
+		 */
+		public boolean next();
+
+		/**
+		 * @return True if there is nothing more to copy
+		 */
+		public boolean isFinished();
+
+		/**
+		 * @return Reason the copy could not be finished now and should be
+		 *   tried again later, or null
+		 */
+		public Retry getRetry();
+
+		/**
+		 * Called instead of another attempt once there have been too many
+		 * retries, to show what wasn't copied.
+		 */
+		public void giveUp();
+	}
+
+	/**
+	 * Actions for a single watcher.
+	 */
+	private static class Lane
+	{
+		/** Actions of each priority, each list in the order they were added */
+		private List<LinkedList<Action>> queues = new ArrayList<LinkedList<Action>>();
+
+		/** True while a worker is carrying out an action from this lane */
+		private boolean running;
+
+		/** Sequence number for the next action added */
+		private long nextSequence;
+
+		Lane()
+		{
+			for(int i=0; i<Priority.values().length; i++)
+			{
+				queues.add(new LinkedList<Action>());
+			}
+		}
+
+		void add(Action action)
+		{
+			action.sequence = nextSequence++;
+			queues.get(action.priority.ordinal()).addLast(action);
+		}
+
+		boolean isEmpty()
+		{
+			for(LinkedList<Action> queue : queues)
+			{
+				if(!queue.isEmpty())
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
 	private abstract static class Action
 	{
-		protected Watcher watcher;
-		protected Path path;
+		protected Client watcher;
+		protected PathNode path;
+		protected Target target;
+		protected Priority priority;
 		private long due;
 
-		Action(Watcher watcher, Path path)
+		/** Order in which the action was added to its lane */
+		private long sequence;
+
+		/**
+		 * Order in which the action was added to the queue. If the action does
+		 * the work of an earlier one that was dropped, this is the earlier one's
+		 * ticket instead.
+		 */
+		private long ticket;
+
+		/** Flight recorder event for time spent in the queue */
+		private Events.Span queued;
+
+		/** Number of times the action has been retried after a delay */
+		private int attempts;
+
+		/** True if apply() threw an exception, so the action is abandoned */
+		private boolean failed;
+
+		/**
+		 * @param watcher Watcher
+		 * @param path Relative path
+		 * @param target Only target to apply to, or null for all targets
+		 * @param priority Priority
+		 */
+		Action(Client watcher, PathNode path, Target target, Priority priority)
 		{
-			due = System.currentTimeMillis() + ACTION_DELAY;
 			this.watcher = watcher;
 			this.path = path;
+			this.target = target;
+			this.priority = priority;
+			queued = Events.start(Events.Type.DEQUEUED);
+		}
+
+		/**
+		 * Records a flight recorder event about this action.
+		 * @param type Event type
+		 */
+		void record(Events.Type type)
+		{
+			Events.record(type, watcher.getNum(), path, getClass().getSimpleName());
+		}
+
+		/**
+		 * @param now Current time
+		 * @return Time in ms until the action is due (negative if overdue)
+		 */
+		long getDelay(long now)
+		{
+			return due - now;
 		}
 
-		long getDelay()
+		/**
+		 * @param now Current time
+		 * @return Priority, counting an action that has waited too long as the
+		 *   highest
+		 */
+		int getEffectivePriority(long now)
 		{
-			return due - System.currentTimeMillis();
+			return -getDelay(now) >= MAX_PRIORITY_WAIT ? 0 : priority.ordinal();
 		}
 
 		abstract boolean apply();
+
+		/**
+		 * @return False if apply() needs to be called again to carry on the action
+		 */
+		boolean isFinished()
+		{
+			return true;
+		}
+
+		/**
+		 * @return Reason to wait before calling apply() again, or null to carry
+		 *   on straight away
+		 */
+		Retry getRetry()
+		{
+			return null;
+		}
+
+		/**
+		 * Called when the action is dropped after too many retries.
+		 */
+		void giveUp()
+		{
+		}
+
 		abstract boolean makesUnnecessary(Action futureAction);
 		abstract boolean madeUnnecessary(Action futureAction);
+
+		/**
+		 * @param other Other action
+		 * @return True if the two actions affect any of the same files
+		 */
+		boolean overlaps(Action other)
+		{
+			return path.contains(other.path) || other.path.contains(path);
+		}
+
+		/**
+		 * @param other Other action
+		 * @return True if this action applies to every target the other one does
+		 */
+		boolean covers(Action other)
+		{
+			return target == null || target == other.target;
+		}
 	}
 
 	private static class CopyAction extends Action
 	{
-		CopyAction(Watcher watcher, Path path)
+		private Copy copy;
+		/** True if this carries on from an earlier run rather than starting again */
+		private boolean resume;
+
+		CopyAction(Client watcher, PathNode path, Target target, Priority priority)
 		{
-			super(watcher, path);
+			super(watcher, path, target, priority);
 		}
 
 		@Override
 		boolean apply()
 		{
-			return watcher.copy(path);
+			if(copy == null)
+			{
+				copy = resume ? watcher.resumeCopy(path.toPath(), target)
+					: watcher.startCopy(path.toPath(), target);
+			}
+			return copy.next();
+		}
+
+		@Override
+		boolean isFinished()
+		{
+			return copy == null || copy.isFinished();
+		}
+
+		@Override
+		Retry getRetry()
+		{
+			return copy == null ? null : copy.getRetry();
+		}
+
+		@Override
+		void giveUp()
+		{
+			if(copy != null)
+			{
+				copy.giveUp();
+			}
 		}
 
 		@Override
 		boolean makesUnnecessary(Action futureAction)
 		{
+			// Once a copy has started, later actions must still happen because
+			// the copy might already have done their part of the tree.
+			// A resumed copy doesn't redo what the earlier run did, so it can't
+			// stand in for anything.
+			if(copy != null || resume)
+			{
+				return false;
+			}
+
 			// Future copy AND delete are unnecessary for anything inside this path
 			// because the copy process deletes and recopies.
-			if(futureAction.path.startsWith(path))
+			if(!(futureAction instanceof CheckAction) && path.contains(futureAction.path)
+				&& covers(futureAction))
 			{
 				return true;
 			}
@@ -111,7 +516,17 @@ public class ActionQueue extends Thread
 			// Copy is unnecessary if a future delete includes this path.
 			if(futureAction instanceof DeleteAction)
 			{
-				if(path.startsWith(futureAction.path))
+				if(futureAction.path.contains(path) && futureAction.covers(this))
+				{
+					return true;
+				}
+			}
+			// The rest of a copy in progress (or one to be resumed) is unnecessary
+			// if a future copy includes this path, as that will start again anyway.
+			if((copy != null || resume) && futureAction instanceof CopyAction
+				&& !((CopyAction)futureAction).resume)
+			{
+				if(futureAction.path.contains(path) && futureAction.covers(this))
 				{
 					return true;
 				}
@@ -122,15 +537,15 @@ public class ActionQueue extends Thread
 
 	private static class DeleteAction extends Action
 	{
-		DeleteAction(Watcher watcher, Path path)
+		DeleteAction(Client watcher, PathNode path, Target target, Priority priority)
 		{
-			super(watcher, path);
+			super(watcher, path, target, priority);
 		}
 
 		@Override
 		boolean apply()
 		{
-			return watcher.delete(path);
+			return watcher.delete(path.toPath(), target);
 		}
 
 		@Override
@@ -147,7 +562,7 @@ public class ActionQueue extends Thread
 			// copy always deletes the entire path.
 			if(futureAction instanceof CopyAction)
 			{
-				if(path.startsWith(futureAction.path))
+				if(futureAction.path.contains(path) && futureAction.covers(this))
 				{
 					return true;
 				}
@@ -156,108 +571,818 @@ public class ActionQueue extends Thread
 		}
 	}
 
-	public void copy(Watcher watcher, Path fileOrFolder)
+	private static class CheckAction extends Action
 	{
-		System.out.println("COPY: " + fileOrFolder);
-		synchronized(queue)
+		CheckAction(Client watcher)
 		{
-			queue.addLast(new CopyAction(watcher, fileOrFolder));
-			queue.notifyAll();
+			super(watcher, watcher.getPaths(), null, Priority.BULK);
 		}
-	}
 
-	public void delete(Watcher watcher, Path fileOrFolder)
-	{
-		synchronized(queue)
+		@Override
+		boolean apply()
 		{
-			queue.addLast(new DeleteAction(watcher, fileOrFolder));
-			queue.notifyAll();
+			return watcher.checkSync();
+		}
+
+		@Override
+		boolean makesUnnecessary(Action futureAction)
+		{
+			return false;
+		}
+
+		@Override
+		boolean madeUnnecessary(Action futureAction)
+		{
+			// Only one check is needed.
+			return futureAction instanceof CheckAction;
 		}
 	}
-	
-	public ActionQueue(Handler handler)
-	{
-		super("Action queue");
-		this.handler = handler;
-		start();
-	}
-	
-	@Override
-	public void run()
+
+	/**
+	 * Action added after everything else for a watcher that has been stopped.
+	 * Once it runs, the watcher's lane is removed.
+	 */
+	private static class RemoveAction extends Action
 	{
-		try
-		{
-			boolean busy = false;
-			actionLoop: while(true)
-			{
-				Action first;
-				synchronized(queue)
-				{
-					// Wait for event in queue.
-					while(queue.isEmpty())
-					{
-						if(busy)
-						{
-							busy = false;
-							handler.markIdle();
-						}
-						queue.wait();
-					}
-	
-					if(!busy)
-					{
-						busy = true;
-						handler.markBusy();
-					}
+		private Runnable done;
 
-					// Wait until event is due.
-					first = queue.removeFirst();
-					while(true)
-					{
-						long delay = first.getDelay();
-						if(delay <= 0)
-						{
-							break;
-						}
-						queue.wait(delay);
-					}
-	
-					// Check if this event is made unnecessary by future events.
-					for(Action futureAction : queue)
-					{
-						if(first.madeUnnecessary(futureAction))
-						{
-							continue actionLoop;
-						}
-					}
-	
-					// Check if there are future events in the queue which are made
-					// unnecessary by this event.
-					for(Iterator<Action> i = queue.iterator(); i.hasNext();)
-					{
-						if(first.makesUnnecessary(i.next()))
-						{
-							i.remove();
-						}
-					}
-				}
-	
-				// Carry out action
-				if(!first.apply())
-				{
-					handler.markError();
-				}
-			}
+		RemoveAction(Client watcher, Runnable done)
+		{
+			super(watcher, watcher.getPaths(), null, Priority.BULK);
+			this.done = done;
 		}
-		catch(InterruptedException e)
+
+		@Override
+		boolean apply()
 		{
-			// If interrupted, there is not a lot we can do, so exit.
-			System.exit(0);
+			done.run();
+			return true;
 		}
-		finally
+
+		@Override
+		boolean makesUnnecessary(Action futureAction)
 		{
-			// If this thread ends, indicate error
-			handler.markError();
+			return false;
 		}
+
+		@Override
+		boolean madeUnnecessary(Action futureAction)
+		{
+			return false;
+		}
+	}
+
+	public void copy(Client watcher, Path fileOrFolder)
+	{
+		copy(watcher, fileOrFolder, null);
+	}
+
+	/**
+	 * @param watcher Watcher
+	 * @param fileOrFolder Relative path
+	 * @param target Only target to copy to, or null for all targets
+	 */
+	public void copy(Client watcher, Path fileOrFolder, Target target)
+	{
+		copy(watcher, fileOrFolder, target, 0);
+	}
+
+	/**
+	 * Queues a copy from background work started by an action (such as
+	 * verifying a file).
+	 * @param watcher Watcher
+	 * @param fileOrFolder Relative path
+	 * @param target Only target to copy to, or null for all targets
+	 * @param ticket Ticket from {@link #holdTicket()} for the copy to share,
+	 *   or 0 for a new one
+	 */
+	public void copy(Client watcher, Path fileOrFolder, Target target, long ticket)
+	{
+		add(new CopyAction(watcher, watcher.getPaths().lookup(fileOrFolder), target,
+			Priority.BULK), ticket);
+	}
+
+	/**
+	 * Queues a copy that an earlier run didn't finish, to carry on from where
+	 * it got to.
+	 * @param watcher Watcher
+	 * @param fileOrFolder Relative path
+	 * @param target Only target to copy to, or null for all targets
+	 */
+	public void resume(Client watcher, Path fileOrFolder, Target target)
+	{
+		CopyAction action = new CopyAction(watcher, watcher.getPaths().lookup(fileOrFolder),
+			target, Priority.BULK);
+		action.resume = true;
+		add(action, 0);
+	}
+
+	public void delete(Client watcher, Path fileOrFolder)
+	{
+		delete(watcher, fileOrFolder, null);
+	}
+
+	/**
+	 * @param watcher Watcher
+	 * @param fileOrFolder Relative path
+	 * @param target Only target to delete from, or null for all targets
+	 */
+	public void delete(Client watcher, Path fileOrFolder, Target target)
+	{
+		add(new DeleteAction(watcher, watcher.getPaths().lookup(fileOrFolder), target,
+			Priority.BULK));
+	}
+
+	/**
+	 * Actions collected by a watcher from one poll of events, to be added to the
+	 * queue in one go. Actions within the batch are coalesced as they are added,
+	 * using the same rules as the queue.
+	 */
+	public static class Batch
+	{
+		private Client watcher;
+		private LinkedList<Action> actions = new LinkedList<Action>();
+
+		private Batch(Client watcher)
+		{
+			this.watcher = watcher;
+		}
+
+		/**
+		 * @param fileOrFolder Relative path
+		 * @param priority Priority
+		 */
+		public void copy(PathNode fileOrFolder, Priority priority)
+		{
+			add(new CopyAction(watcher, fileOrFolder, null, priority));
+		}
+
+		public void delete(PathNode fileOrFolder)
+		{
+			add(new DeleteAction(watcher, fileOrFolder, null, Priority.INTERACTIVE));
+		}
+
+		private void add(Action action)
+		{
+			// Nothing in the batch has run yet, so earlier actions will happen
+			// after all the events in the batch.
+			for(Iterator<Action> i = actions.iterator(); i.hasNext();)
+			{
+				Action earlier = i.next();
+				if(earlier.makesUnnecessary(action))
+				{
+					action.record(Events.Type.COALESCED);
+					return;
+				}
+				if(earlier.madeUnnecessary(action))
+				{
+					earlier.record(Events.Type.COALESCED);
+					i.remove();
+				}
+			}
+			actions.addLast(action);
+		}
+
+		/**
+		 * @return True if there are no actions in the batch
+		 */
+		public boolean isEmpty()
+		{
+			return actions.isEmpty();
+		}
+	}
+
+	/**
+	 * @param watcher Watcher
+	 * @return New empty batch for adding with {@link #add(Batch)}
+	 */
+	public Batch newBatch(Client watcher)
+	{
+		return new Batch(watcher);
+	}
+
+	/**
+	 * Adds all actions in a batch to the queue.
+	 * @param batch Batch
+	 */
+	public void add(Batch batch)
+	{
+		if(batch.isEmpty())
+		{
+			return;
+		}
+		long due = clock.currentTimeMillis() + ACTION_DELAY;
+		for(Action action : batch.actions)
+		{
+			action.due = due;
+			issueTicket(action, 0);
+			action.record(Events.Type.ENQUEUED);
+		}
+		inbox.addAll(batch.actions);
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Queues a check of whether the target is in sync. This happens after
+	 * everything already queued for the watcher.
+	 * @param watcher Watcher
+	 */
+	public void check(Client watcher)
+	{
+		add(new CheckAction(watcher));
+	}
+
+	/**
+	 * Removes a watcher that has stopped, once everything already queued for
+	 * it has been carried out.
+	 * @param watcher Watcher
+	 * @param done Run (on a worker thread) when the watcher's actions are done
+	 */
+	public void remove(Client watcher, Runnable done)
+	{
+		add(new RemoveAction(watcher, done));
+	}
+
+	private void add(Action action)
+	{
+		add(action, 0);
+	}
+
+	/**
+	 * @param action Action
+	 * @param ticket Held ticket for the action to share, or 0
+	 */
+	private void add(Action action, long ticket)
+	{
+		action.due = clock.currentTimeMillis() + ACTION_DELAY;
+		issueTicket(action, ticket);
+		action.record(Events.Type.ENQUEUED);
+		inbox.add(action);
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * @return Ticket of the most recently added action; once
+	 *   {@link #waitForTicket(long, long)} returns true for this, everything
+	 *   added so far has been done
+	 */
+	public long getLastTicket()
+	{
+		return nextTicket.get() - 1;
+	}
+
+	/**
+	 * @return Number of actions waiting or running
+	 */
+	public int getDepth()
+	{
+		int depth = 0;
+		for(AtomicInteger count : outstanding.values())
+		{
+			depth += count.get();
+		}
+		return depth;
+	}
+
+	/**
+	 * Waits until all actions up to a ticket have been done (or dropped
+	 * because a later action does the same work, which is then waited for).
+	 * @param ticket Ticket from {@link #getLastTicket()}
+	 * @param timeout Maximum time to wait in ms
+	 * @return True if done, false if it timed out
+	 * @throws InterruptedException If interrupted
+	 */
+	public boolean waitForTicket(long ticket, long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		Thread thread = Thread.currentThread();
+		ticketWaiters.add(thread);
+		try
+		{
+			while(true)
+			{
+				Map.Entry<Long, AtomicInteger> first = outstanding.firstEntry();
+				if(first == null || first.getKey() > ticket)
+				{
+					return true;
+				}
+				long wait = end - System.currentTimeMillis();
+				if(wait <= 0)
+				{
+					return false;
+				}
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+				if(Thread.interrupted())
+				{
+					throw new InterruptedException();
+				}
+			}
+		}
+		finally
+		{
+			ticketWaiters.remove(thread);
+		}
+	}
+
+	/**
+	 * Gives an action a ticket. Actions queued by a running action (such as
+	 * copies found by a check) share its ticket rather than getting a new one.
+	 * @param action Action
+	 * @param held Held ticket to share, or 0
+	 */
+	private void issueTicket(Action action, long held)
+	{
+		Long running = runningTicket.get();
+		if(held == 0 && running != null)
+		{
+			held = running;
+		}
+		if(held != 0)
+		{
+			action.ticket = held;
+			countTicket(held, 1);
+		}
+		else
+		{
+			action.ticket = nextTicket.getAndIncrement();
+			outstanding.put(action.ticket, new AtomicInteger(1));
+		}
+	}
+
+	/**
+	 * Keeps the ticket of the action running on this thread outstanding after
+	 * the action finishes, for background work that it starts and that may
+	 * queue more actions. Call {@link #releaseTicket(long)} when it finishes.
+	 * @return Ticket, or 0 if not called from an action
+	 */
+	long holdTicket()
+	{
+		Long running = runningTicket.get();
+		if(running == null)
+		{
+			return 0;
+		}
+		countTicket(running, 1);
+		return running;
+	}
+
+	/**
+	 * Releases a ticket from {@link #holdTicket()}.
+	 * @param ticket Ticket, or 0 to do nothing
+	 */
+	void releaseTicket(long ticket)
+	{
+		if(ticket != 0)
+		{
+			countTicket(ticket, -1);
+		}
+	}
+
+	/**
+	 * Marks an action as done.
+	 * @param action Action
+	 */
+	private void ticketDone(Action action)
+	{
+		countTicket(action.ticket, -1);
+	}
+
+	/**
+	 * Marks an action as dropped because another one does its work, so the
+	 * other one takes over the earlier ticket.
+	 * @param dropped Action that won't happen
+	 * @param survivor Action that will do its work
+	 */
+	private void ticketMerged(Action dropped, Action survivor)
+	{
+		if(dropped.ticket < survivor.ticket)
+		{
+			countTicket(dropped.ticket, 1);
+			countTicket(survivor.ticket, -1);
+			survivor.ticket = dropped.ticket;
+		}
+		countTicket(dropped.ticket, -1);
+	}
+
+	/**
+	 * Changes the count for a ticket, which must be outstanding. When it
+	 * reaches zero, the ticket is removed and waiting threads check again.
+	 * @param ticket Ticket
+	 * @param change Change to count
+	 */
+	private void countTicket(long ticket, int change)
+	{
+		AtomicInteger count = outstanding.get(ticket);
+		if(count.addAndGet(change) == 0)
+		{
+			outstanding.remove(ticket, count);
+			for(Thread waiter : ticketWaiters)
+			{
+				LockSupport.unpark(waiter);
+			}
+		}
+	}
+	
+	public ActionQueue(Handler handler)
+	{
+		this(handler, Clock.SYSTEM);
+	}
+
+	/**
+	 * @param handler Handler
+	 * @param clock Clock used for delays and priorities
+	 */
+	ActionQueue(Handler handler, Clock clock)
+	{
+		super("Action queue");
+		this.handler = handler;
+		this.clock = clock;
+		start();
+	}
+
+	/**
+	 * @return Clock used for delays and priorities
+	 */
+	Clock getClock()
+	{
+		return clock;
+	}
+
+	/**
+	 * Makes the scheduler look at the queue again, e.g. because a test clock
+	 * has moved on.
+	 */
+	void wake()
+	{
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while(true)
+			{
+				long wait = schedule();
+				// Locks taken while scheduling (such as handing an action to
+				// the pool) can use up an unpark, so look again if anything
+				// arrived in the meantime rather than parking.
+				if(!inbox.isEmpty() || !done.isEmpty())
+				{
+					continue;
+				}
+				if(wait < 0)
+				{
+					LockSupport.park(this);
+				}
+				else
+				{
+					LockSupport.parkNanos(this, wait * 1000000L);
+				}
+			}
+		}
+		finally
+		{
+			// If this thread ends, indicate error
+			handler.markError();
+		}
+	}
+
+	/**
+	 * Takes new and finished actions, and starts any that are due.
+	 * @return Time in ms until the next action is due, or -1 if there is
+	 *   nothing to wait for except new or finished actions
+	 */
+	private long schedule()
+	{
+		for(Action action; (action = inbox.poll()) != null;)
+		{
+			Lane lane = getLane(action.watcher);
+			dropRetries(lane, action);
+			lane.add(action);
+		}
+		for(Action action; (action = done.poll()) != null;)
+		{
+			Lane lane = laneMap.get(action.watcher);
+			lane.running = false;
+			running--;
+			if(action instanceof RemoveAction)
+			{
+				lanes.remove(lane);
+				laneMap.remove(action.watcher);
+				ticketDone(action);
+			}
+			else if(!action.failed && !action.isFinished())
+			{
+				Retry retry = action.getRetry();
+				if(retry != null && !retry.allows(action.attempts))
+				{
+					action.giveUp();
+					handler.markError();
+					ticketDone(action);
+					continue;
+				}
+				// Put unfinished action at the end of the lane so that
+				// anything which arrived in the meantime goes first. The rest
+				// of a folder copy is bulk work. Retries wait before they are
+				// due, while other actions carry on.
+				action.due = clock.currentTimeMillis();
+				if(retry != null)
+				{
+					action.due += retry.getDelay(action.attempts++);
+				}
+				action.priority = Priority.BULK;
+				action.queued = Events.start(Events.Type.DEQUEUED);
+				lane.add(action);
+			}
+			else
+			{
+				ticketDone(action);
+			}
+		}
+
+		long wait = -1;
+		boolean empty = running == 0;
+		while(running < MAX_WORKERS)
+		{
+			// Find the first lane (in round-robin order) that is free and has a
+			// due action, also working out how long to wait if there isn't one.
+			Action next = null;
+			Lane found = null;
+			wait = -1;
+			for(Lane lane : lanes)
+			{
+				if(lane.isEmpty())
+				{
+					continue;
+				}
+				empty = false;
+				if(lane.running)
+				{
+					continue;
+				}
+				long[] delay = { -1 };
+				next = takeDue(lane, clock.currentTimeMillis(), delay);
+				if(next != null)
+				{
+					found = lane;
+					break;
+				}
+				if(delay[0] >= 0 && (wait == -1 || delay[0] < wait))
+				{
+					wait = delay[0];
+				}
+			}
+			if(next == null)
+			{
+				break;
+			}
+
+			if(!busy)
+			{
+				busy = true;
+				handler.markBusy();
+			}
+
+			// Move lane to end so that other lanes get the next turn.
+			lanes.remove(found);
+			lanes.addLast(found);
+			found.running = true;
+			running++;
+			Events.end(next.queued, next.watcher.getNum(), next.path,
+				next.getClass().getSimpleName(), 0);
+			next.queued = null;
+			start(next);
+		}
+
+		if(empty && busy)
+		{
+			busy = false;
+			handler.markIdle();
+		}
+		return wait;
+	}
+
+	/**
+	 * Drops actions waiting to be retried that a new action makes unnecessary,
+	 * so that the new one doesn't have to wait behind them.
+	 * @param lane Lane
+	 * @param action New action
+	 */
+	private void dropRetries(Lane lane, Action action)
+	{
+		for(LinkedList<Action> queue : lane.queues)
+		{
+			for(Iterator<Action> i = queue.iterator(); i.hasNext();)
+			{
+				Action waiting = i.next();
+				if(waiting.attempts > 0 && waiting.madeUnnecessary(action))
+				{
+					waiting.record(Events.Type.COALESCED);
+					i.remove();
+					ticketMerged(waiting, action);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the highest priority action in a lane that is due and does not
+	 * overlap any earlier action, dropping any actions made unnecessary on the
+	 * way. Within a priority, actions are taken in order.
+	 * @param lane Lane
+	 * @param now Current time
+	 * @param delay Set to the time until an action could be due, if none is
+	 * @return Action or null if none
+	 */
+	private Action takeDue(Lane lane, long now, long[] delay)
+	{
+		while(true)
+		{
+			// Find the first possible action at each priority, and pick the best.
+			Action best = null;
+			for(LinkedList<Action> queue : lane.queues)
+			{
+				Action candidate = firstDue(lane, queue, now, delay);
+				if(candidate != null && (best == null
+					|| candidate.getEffectivePriority(now) < best.getEffectivePriority(now)
+					|| (candidate.getEffectivePriority(now) == best.getEffectivePriority(now)
+					&& candidate.sequence < best.sequence)))
+				{
+					best = candidate;
+				}
+			}
+			if(best == null)
+			{
+				return null;
+			}
+			lane.queues.get(best.priority.ordinal()).remove(best);
+
+			// Check if this event is made unnecessary by future events.
+			Action replacement = null;
+			for(Action future : getLater(lane, best))
+			{
+				if(best.madeUnnecessary(future))
+				{
+					replacement = future;
+					break;
+				}
+			}
+			if(replacement != null)
+			{
+				best.record(Events.Type.COALESCED);
+				ticketMerged(best, replacement);
+				continue;
+			}
+
+			// Check if there are future events in the queue which are made
+			// unnecessary by this event.
+			for(Action future : getLater(lane, best))
+			{
+				if(best.makesUnnecessary(future))
+				{
+					future.record(Events.Type.COALESCED);
+					lane.queues.get(future.priority.ordinal()).remove(future);
+					ticketMerged(future, best);
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * Finds the first action in a queue that is due and does not overlap any
+	 * earlier action in the lane (apart from retries that are not due yet).
+	 * @param lane Lane
+	 * @param queue Queue (one priority) within lane
+	 * @param now Current time
+	 * @param delay Set to the time until an action could be due, if less than
+	 *   the current value
+	 * @return Action or null if none
+	 */
+	private Action firstDue(Lane lane, LinkedList<Action> queue, long now, long[] delay)
+	{
+		int index = 0;
+		candidateLoop: for(Action candidate : queue)
+		{
+			if(index++ >= LOOKAHEAD)
+			{
+				break;
+			}
+			long candidateDelay = candidate.getDelay(now);
+			if(candidateDelay > 0)
+			{
+				if(delay[0] == -1 || candidateDelay < delay[0])
+				{
+					delay[0] = candidateDelay;
+				}
+				continue;
+			}
+			for(LinkedList<Action> other : lane.queues)
+			{
+				for(Action before : other)
+				{
+					if(before.sequence >= candidate.sequence)
+					{
+						break;
+					}
+					// A retry that is waiting doesn't hold up later actions on
+					// the same path; it uses whatever is in the source when it
+					// runs.
+					if(before.attempts > 0 && before.getDelay(now) > 0)
+					{
+						continue;
+					}
+					if(candidate.overlaps(before))
+					{
+						continue candidateLoop;
+					}
+				}
+			}
+			return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * @param lane Lane
+	 * @param action Action
+	 * @return All actions in the lane added after the given one
+	 */
+	private List<Action> getLater(Lane lane, Action action)
+	{
+		List<Action> later = new ArrayList<Action>();
+		for(LinkedList<Action> queue : lane.queues)
+		{
+			for(Iterator<Action> i = queue.descendingIterator(); i.hasNext();)
+			{
+				Action future = i.next();
+				if(future.sequence <= action.sequence)
+				{
+					break;
+				}
+				later.add(future);
+			}
+		}
+		return later;
+	}
+
+	/**
+	 * Gets the lane for a watcher, creating it if needed.
+	 * @param watcher Watcher
+	 * @return Lane
+	 */
+	private Lane getLane(Client watcher)
+	{
+		Lane lane = laneMap.get(watcher);
+		if(lane == null)
+		{
+			lane = new Lane();
+			laneMap.put(watcher, lane);
+			lanes.addLast(lane);
+		}
+		return lane;
+	}
+
+	/**
+	 * Runs an action on a worker thread.
+	 * @param action Action
+	 */
+	private void start(final Action action)
+	{
+		final Thread scheduler = this;
+		workers.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				boolean ok = false;
+				runningTicket.set(action.ticket);
+				try
+				{
+					// Carry out action
+					ok = action.apply();
+				}
+				catch(RuntimeException | Error e)
+				{
+					// Don't let one action stop the queue; it counts as done,
+					// with an error.
+					e.printStackTrace();
+					action.failed = true;
+				}
+				finally
+				{
+					runningTicket.remove();
+					// Show the error before the action counts as done.
+					if(!ok)
+					{
+						handler.markError();
+					}
+					done.add(action);
+					LockSupport.unpark(scheduler);
+				}
+			}
+		});
 	}
 }
@@ -0,0 +1,40 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+/**
+ * Source of the current time, so that tests can control time.
+ */
+interface Clock
+{
+	/** Real time */
+	public final static Clock SYSTEM = new Clock()
+	{
+		@Override
+		public long currentTimeMillis()
+		{
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * @return Current time in ms
+	 */
+	public long currentTimeMillis();
+}
@@ -0,0 +1,160 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Small HTTP server on the loopback interface so that scripts can tell when
+ * filecopier has caught up, instead of sleeping for a fixed time.
+ * <ul>
+ * <li>GET /status returns the number of queued actions and whether the queue
+ *   is busy, as JSON.</li>
+ * <li>GET /sync waits until everything queued before the request has been
+ *   done, then returns 200. If that takes longer than the timeout parameter
+ *   (ms, default 60000) it returns 504 instead.</li>
+ * </ul>
+ */
+class ControlServer
+{
+	private final static long DEFAULT_SYNC_TIMEOUT = 60000;
+
+	private ActionQueue queue;
+	private HttpServer server;
+	private ExecutorService executor;
+	private int port;
+
+	/**
+	 * Starts the server.
+	 * @param queue Action queue
+	 * @param port Port on the loopback interface
+	 * @throws IOException If the port can't be used
+	 */
+	ControlServer(ActionQueue queue, int port) throws IOException
+	{
+		this.queue = queue;
+		this.port = port;
+		server = HttpServer.create(
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/status", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				handleStatus(exchange);
+			}
+		});
+		server.createContext("/sync", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				handleSync(exchange);
+			}
+		});
+		// Sync requests block, so each needs its own thread.
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return Port
+	 */
+	int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Stops the server and lets its threads finish.
+	 */
+	void stop()
+	{
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private void handleStatus(HttpExchange exchange) throws IOException
+	{
+		int depth = queue.getDepth();
+		send(exchange, 200, "{\"busy\":" + (depth > 0) + ",\"depth\":" + depth
+			+ ",\"ticket\":" + queue.getLastTicket() + "}");
+	}
+
+	private void handleSync(HttpExchange exchange) throws IOException
+	{
+		long ticket = queue.getLastTicket();
+		long timeout = DEFAULT_SYNC_TIMEOUT;
+		String query = exchange.getRequestURI().getQuery();
+		if(query != null)
+		{
+			for(String param : query.split("&"))
+			{
+				if(param.startsWith("timeout="))
+				{
+					try
+					{
+						timeout = Long.parseLong(param.substring("timeout=".length()));
+					}
+					catch(NumberFormatException e)
+					{
+						send(exchange, 400, "{\"error\":\"Invalid timeout\"}");
+						return;
+					}
+				}
+			}
+		}
+		boolean done;
+		try
+		{
+			done = queue.waitForTicket(ticket, timeout);
+		}
+		catch(InterruptedException e)
+		{
+			done = false;
+		}
+		if(done)
+		{
+			send(exchange, 200, "{\"synced\":true,\"ticket\":" + ticket + "}");
+		}
+		else
+		{
+			send(exchange, 504, "{\"synced\":false,\"ticket\":" + ticket
+				+ ",\"depth\":" + queue.getDepth() + "}");
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String body)
+		throws IOException
+	{
+		byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try(OutputStream out = exchange.getResponseBody())
+		{
+			out.write(bytes);
+		}
+	}
+}
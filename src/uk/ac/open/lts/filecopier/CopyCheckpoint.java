@@ -0,0 +1,256 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Progress of a folder copy (such as 'wipe and re-copy'), saved in the state
+ * folder so that if filecopier exits part way through, the copy carries on
+ * from the same place next time instead of starting again. Copies of large
+ * files are saved too, with no folders, so that they are queued again; the
+ * file itself carries on from its own checkpoint in {@link ResumableCopy}.
+ * <p>
+ * Copies walk each folder in sorted order, so progress is saved as the
+ * folders currently being walked and the last entry taken from each.
+ * Everything before that has been copied. Names are used rather than
+ * positions, so files added or removed in the meantime don't throw it out.
+ */
+class CopyCheckpoint
+{
+	private final static int FILE_VERSION = 1;
+	private final static String SUFFIX = ".copy";
+
+	private Path file;
+	private String source, path;
+	private List<String> targets = new ArrayList<String>();
+	private List<String> folders = new ArrayList<String>(), lastNames = new ArrayList<String>();
+
+	/**
+	 * @param source Source folder of watcher
+	 * @param path Relative path being copied
+	 * @param targets Target folders being copied to
+	 */
+	CopyCheckpoint(Path source, Path path, List<Target> targets)
+	{
+		this.source = source.toString();
+		this.path = path.toString();
+		this.targets = getPaths(targets);
+		file = getFolder().resolve(getPrefix(source)
+			+ MappingState.getKey(this.path + "|" + this.targets) + SUFFIX);
+	}
+
+	private CopyCheckpoint()
+	{
+	}
+
+	private static List<String> getPaths(List<Target> targets)
+	{
+		List<String> paths = new ArrayList<String>();
+		for(Target target : targets)
+		{
+			paths.add(target.getPath().toString());
+		}
+		return paths;
+	}
+
+	private static Path getFolder()
+	{
+		return Main.getStateFolder().resolve("copies");
+	}
+
+	private static String getPrefix(Path source)
+	{
+		return MappingState.getKey(source) + "-";
+	}
+
+	/**
+	 * Lists saved copies for a watcher.
+	 * @param source Source folder of watcher
+	 * @return Checkpoints (unreadable ones are deleted)
+	 */
+	static List<CopyCheckpoint> list(Path source)
+	{
+		List<CopyCheckpoint> result = new ArrayList<CopyCheckpoint>();
+		if(!Files.isDirectory(getFolder()))
+		{
+			return result;
+		}
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(getFolder(),
+			getPrefix(source) + "*" + SUFFIX))
+		{
+			for(Path file : stream)
+			{
+				CopyCheckpoint checkpoint = load(file);
+				if(checkpoint != null && checkpoint.source.equals(source.toString()))
+				{
+					result.add(checkpoint);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	private static CopyCheckpoint load(Path file)
+	{
+		if(!Files.exists(file))
+		{
+			return null;
+		}
+		CopyCheckpoint checkpoint = new CopyCheckpoint();
+		checkpoint.file = file;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+			Files.newInputStream(file))))
+		{
+			if(in.readInt() != FILE_VERSION)
+			{
+				throw new IOException("Unknown checkpoint version");
+			}
+			checkpoint.source = in.readUTF();
+			checkpoint.path = in.readUTF();
+			for(int i = in.readInt(); i > 0; i--)
+			{
+				checkpoint.targets.add(in.readUTF());
+			}
+			for(int i = in.readInt(); i > 0; i--)
+			{
+				checkpoint.folders.add(in.readUTF());
+				checkpoint.lastNames.add(in.readUTF());
+			}
+			return checkpoint;
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			checkpoint.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * @param path Relative path being copied
+	 * @param targets Target folders being copied to
+	 * @return True if this is the saved progress of that copy
+	 */
+	boolean isFor(Path path, List<Target> targets)
+	{
+		return this.path.equals(path.toString()) && this.targets.equals(getPaths(targets));
+	}
+
+	/**
+	 * @return Relative path being copied
+	 */
+	String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * @return Target folders being copied to
+	 */
+	List<String> getTargets()
+	{
+		return targets;
+	}
+
+	/**
+	 * @return Relative paths of folders being walked, outermost first
+	 */
+	List<String> getFolders()
+	{
+		return folders;
+	}
+
+	/**
+	 * @return Name of last entry taken from each folder, or "" if none yet
+	 */
+	List<String> getLastNames()
+	{
+		return lastNames;
+	}
+
+	/**
+	 * Sets the folders being walked, ready to save.
+	 * @param folders Relative paths of folders, outermost first
+	 * @param lastNames Name of last entry taken from each folder, or ""
+	 */
+	void set(List<String> folders, List<String> lastNames)
+	{
+		this.folders = folders;
+		this.lastNames = lastNames;
+	}
+
+	/**
+	 * Saves progress. The file is replaced in one go so a crash while saving
+	 * leaves the previous checkpoint.
+	 */
+	void save()
+	{
+		Path temp = file.resolveSibling(file.getFileName() + ".new");
+		try
+		{
+			Files.createDirectories(file.getParent());
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				Files.newOutputStream(temp))))
+			{
+				out.writeInt(FILE_VERSION);
+				out.writeUTF(source);
+				out.writeUTF(path);
+				out.writeInt(targets.size());
+				for(String target : targets)
+				{
+					out.writeUTF(target);
+				}
+				out.writeInt(folders.size());
+				for(int i=0; i<folders.size(); i++)
+				{
+					out.writeUTF(folders.get(i));
+					out.writeUTF(lastNames.get(i));
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Deletes saved progress once the copy is finished.
+	 */
+	void delete()
+	{
+		try
+		{
+			Files.deleteIfExists(file);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,395 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Tree of file metadata (size and modified time) for a folder, with a digest
+ * for each folder that is rolled up from its contents (a Merkle tree). Two
+ * trees can be compared quickly by only looking inside folders whose digests
+ * differ.
+ * <p>
+ * Digests are worked out lazily, so changes only cost a walk up to the root to
+ * mark folders as changed.
+ * <p>
+ * All methods are synchronized as trees are updated from several threads.
+ */
+class DigestTree
+{
+	private Node root = new Node(null, "", true);
+
+	private static class Node
+	{
+		private Node parent;
+		private String name;
+		private boolean folder;
+		private long size, modified;
+		private TreeMap<String, Node> children;
+
+		/** Digest of this node (including children); only valid if !changed */
+		private long digest;
+		private boolean changed = true;
+
+		Node(Node parent, String name, boolean folder)
+		{
+			this.parent = parent;
+			this.name = name;
+			this.folder = folder;
+			if(folder)
+			{
+				children = new TreeMap<String, Node>();
+			}
+		}
+
+		void markChanged()
+		{
+			for(Node node = this; node != null && !node.changed; node = node.parent)
+			{
+				node.changed = true;
+			}
+		}
+
+		long getDigest()
+		{
+			if(changed)
+			{
+				long hash = mix(name.hashCode() * 31L + (folder ? 1 : 2));
+				if(folder)
+				{
+					for(Node child : children.values())
+					{
+						hash = mix(hash ^ child.getDigest());
+					}
+				}
+				else
+				{
+					hash = mix(mix(hash ^ size) ^ modified);
+				}
+				digest = hash;
+				changed = false;
+			}
+			return digest;
+		}
+	}
+
+	/**
+	 * Scrambles bits of a 64-bit value (from the SplitMix64 generator).
+	 */
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Finds a node.
+	 * @param relative Relative path
+	 * @param create If true, creates folders (and changes files to folders) on
+	 *   the way
+	 * @return Node or null if it doesn't exist
+	 */
+	private Node find(Path relative, boolean create)
+	{
+		Node node = root;
+		for(int i=0; i<relative.getNameCount(); i++)
+		{
+			String name = relative.getName(i).toString();
+			if(name.equals(".") || name.isEmpty())
+			{
+				continue;
+			}
+			if(!node.folder)
+			{
+				if(!create)
+				{
+					return null;
+				}
+				node.folder = true;
+				node.children = new TreeMap<String, Node>();
+				node.markChanged();
+			}
+			Node child = node.children.get(name);
+			if(child == null)
+			{
+				if(!create)
+				{
+					return null;
+				}
+				child = new Node(node, name, true);
+				node.children.put(name, child);
+				node.markChanged();
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * Records a file or folder.
+	 * @param relative Relative path
+	 * @param attrs Attributes
+	 */
+	public synchronized void update(Path relative, BasicFileAttributes attrs)
+	{
+		if(attrs.isDirectory())
+		{
+			addFolder(relative);
+		}
+		else
+		{
+			updateFile(relative, attrs.size(), attrs.lastModifiedTime().toMillis());
+		}
+	}
+
+	/**
+	 * Records a folder.
+	 * @param relative Relative path
+	 */
+	public synchronized void addFolder(Path relative)
+	{
+		Node node = find(relative, true);
+		if(!node.folder)
+		{
+			node.folder = true;
+			node.children = new TreeMap<String, Node>();
+			node.markChanged();
+		}
+	}
+
+	/**
+	 * Records a file.
+	 * @param relative Relative path
+	 * @param size Size in bytes
+	 * @param modified Last modified time
+	 */
+	public synchronized void updateFile(Path relative, long size, long modified)
+	{
+		Node node = find(relative, true);
+		if(node == root)
+		{
+			return;
+		}
+		node.folder = false;
+		node.children = null;
+		node.size = size;
+		node.modified = modified;
+		node.markChanged();
+	}
+
+	/**
+	 * Removes a file or folder (the root folder is emptied instead).
+	 * @param relative Relative path
+	 */
+	public synchronized void remove(Path relative)
+	{
+		Node node = find(relative, false);
+		if(node == null)
+		{
+			return;
+		}
+		if(node == root)
+		{
+			root.children.clear();
+			root.markChanged();
+			return;
+		}
+		node.parent.children.remove(node.name);
+		node.parent.markChanged();
+	}
+
+	/**
+	 * Checks whether a file is recorded with the given attributes.
+	 * @param relative Relative path
+	 * @param attrs Attributes
+	 * @return True if the tree has a file at that path with the same size and
+	 *   modified time
+	 */
+	public synchronized boolean matches(Path relative, BasicFileAttributes attrs)
+	{
+		Node node = find(relative, false);
+		return node != null && !node.folder && !attrs.isDirectory()
+			&& node.size == attrs.size()
+			&& node.modified == attrs.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * @return Digest of whole tree
+	 */
+	public synchronized long getDigest()
+	{
+		return root.getDigest();
+	}
+
+	/**
+	 * @return Number of files and folders (not including root)
+	 */
+	public synchronized int size()
+	{
+		return count(root) - 1;
+	}
+
+	private static int count(Node node)
+	{
+		int count = 1;
+		if(node.folder)
+		{
+			for(Node child : node.children.values())
+			{
+				count += count(child);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Differences between two trees.
+	 */
+	static class Diff
+	{
+		/** Paths that are missing or different in the target */
+		List<Path> copies = new ArrayList<Path>();
+		/** Paths that are only in the target */
+		List<Path> deletes = new ArrayList<Path>();
+	}
+
+	/**
+	 * Compares two trees, only looking inside folders whose digests differ.
+	 * @param source Source tree
+	 * @param target Target tree
+	 * @param base Path representing the root (e.g. empty path); child paths are
+	 *   resolved against this
+	 * @return Differences
+	 */
+	static Diff diff(DigestTree source, DigestTree target, Path base)
+	{
+		Diff diff = new Diff();
+		synchronized(source)
+		{
+			synchronized(target)
+			{
+				diff(source.root, target.root, base, diff);
+			}
+		}
+		return diff;
+	}
+
+	private static void diff(Node source, Node target, Path path, Diff diff)
+	{
+		if(source.getDigest() == target.getDigest())
+		{
+			return;
+		}
+		for(Node child : source.children.values())
+		{
+			Path childPath = path.resolve(child.name);
+			Node other = target.children.get(child.name);
+			if(other == null || other.folder != child.folder || !child.folder)
+			{
+				if(other == null || child.getDigest() != other.getDigest())
+				{
+					diff.copies.add(childPath);
+				}
+			}
+			else
+			{
+				diff(child, other, childPath, diff);
+			}
+		}
+		for(Node child : target.children.values())
+		{
+			if(!source.children.containsKey(child.name))
+			{
+				diff.deletes.add(path.resolve(child.name));
+			}
+		}
+	}
+
+	/**
+	 * Saves tree to a stream.
+	 * @param out Output
+	 * @throws IOException Any error
+	 */
+	public synchronized void save(DataOutputStream out) throws IOException
+	{
+		save(root, out);
+	}
+
+	private static void save(Node node, DataOutputStream out) throws IOException
+	{
+		out.writeUTF(node.name);
+		out.writeBoolean(node.folder);
+		if(node.folder)
+		{
+			out.writeInt(node.children.size());
+			for(Node child : node.children.values())
+			{
+				save(child, out);
+			}
+		}
+		else
+		{
+			out.writeLong(node.size);
+			out.writeLong(node.modified);
+		}
+	}
+
+	/**
+	 * Loads tree from a stream (replacing current contents).
+	 * @param in Input
+	 * @throws IOException Any error
+	 */
+	public synchronized void load(DataInputStream in) throws IOException
+	{
+		root = load(null, in);
+	}
+
+	private static Node load(Node parent, DataInputStream in) throws IOException
+	{
+		String name = in.readUTF();
+		Node node = new Node(parent, name, in.readBoolean());
+		if(node.folder)
+		{
+			int count = in.readInt();
+			for(int i=0; i<count; i++)
+			{
+				Node child = load(node, in);
+				node.children.put(child.name, child);
+			}
+		}
+		else
+		{
+			node.size = in.readLong();
+			node.modified = in.readLong();
+		}
+		return node;
+	}
+
+	/**
+	 * Removes everything.
+	 */
+	public synchronized void clear()
+	{
+		root = new Node(null, "", true);
+	}
+}
@@ -0,0 +1,229 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Java Flight Recorder events which show where time goes between a file
+ * changing and it reaching the target: watch events, time waiting in the
+ * queue (including the grouping delay), coalescing, and each I/O step of
+ * copies and deletes.
+ * <p>
+ * The event types are defined at run time using jdk.jfr.EventFactory, so
+ * filecopier still runs on Java versions without JFR, where these methods do
+ * nothing. When JFR is present but not recording, each call only checks
+ * whether the event type is enabled.
+ * <p>
+ * In debug mode the same events are also written to the {@link Journal}.
+ */
+class Events
+{
+	/**
+	 * Event types. All have the same fields: mapping number, path, detail and
+	 * bytes.
+	 */
+	enum Type
+	{
+		WATCH_EVENT("WatchEvent", "Watch Event"),
+		ENQUEUED("ActionEnqueued", "Action Enqueued"),
+		COALESCED("ActionCoalesced", "Action Coalesced"),
+		DEQUEUED("ActionDequeued", "Action Dequeued"),
+		DELETE("Delete", "Delete"),
+		CREATE_FOLDERS("CreateFolders", "Create Folders"),
+		COPY("Copy", "Copy");
+
+		private String name, label;
+		private Object factory, eventType;
+
+		private Type(String name, String label)
+		{
+			this.name = name;
+			this.label = label;
+		}
+	}
+
+	private final static int FIELD_MAPPING = 0, FIELD_PATH = 1, FIELD_DETAIL = 2,
+		FIELD_BYTES = 3;
+
+	private static boolean available;
+	private static Method isEnabled, newEvent, begin, end, set, commit;
+
+	static
+	{
+		try
+		{
+			Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+			Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+			Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+			Constructor<?> value = valueClass.getConstructor(Class.class, String.class);
+			Method create = factoryClass.getMethod("create", List.class, List.class);
+
+			List<Object> fields = new ArrayList<Object>();
+			fields.add(value.newInstance(int.class, "mapping"));
+			fields.add(value.newInstance(String.class, "path"));
+			fields.add(value.newInstance(String.class, "detail"));
+			fields.add(value.newInstance(long.class, "bytes"));
+
+			for(Type type : Type.values())
+			{
+				List<Object> annotations = new ArrayList<Object>();
+				annotations.add(annotation.newInstance(
+					annotationType("jdk.jfr.Name"), "uk.ac.open.lts.filecopier." + type.name));
+				annotations.add(annotation.newInstance(
+					annotationType("jdk.jfr.Label"), type.label));
+				annotations.add(annotation.newInstance(
+					annotationType("jdk.jfr.Category"), new String[] { "FileCopier" }));
+				type.factory = create.invoke(null, annotations, fields);
+				type.eventType = factoryClass.getMethod("getEventType").invoke(type.factory);
+			}
+
+			isEnabled = eventTypeClass.getMethod("isEnabled");
+			newEvent = factoryClass.getMethod("newEvent");
+			begin = eventClass.getMethod("begin");
+			end = eventClass.getMethod("end");
+			set = eventClass.getMethod("set", int.class, Object.class);
+			commit = eventClass.getMethod("commit");
+			available = true;
+		}
+		catch(ClassNotFoundException e)
+		{
+			// No JFR in this Java version.
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotationType(String name)
+		throws ClassNotFoundException
+	{
+		return (Class<? extends Annotation>)Class.forName(name);
+	}
+
+	/**
+	 * An event with a duration, which has begun and not yet been committed.
+	 */
+	static class Span
+	{
+		private Type type;
+		private Object event;
+		private long startNanos = System.nanoTime();
+
+		private Span(Type type, Object event)
+		{
+			this.type = type;
+			this.event = event;
+		}
+
+		/**
+		 * Ends and records the event.
+		 * @param mapping Mapping (watcher) number
+		 * @param path Relative path, or null
+		 * @param detail Extra information, or null
+		 * @param bytes Bytes involved, or 0
+		 */
+		void end(int mapping, Object path, String detail, long bytes)
+		{
+			Journal.add(type, mapping, path, detail, bytes, System.nanoTime() - startNanos);
+			if(event == null)
+			{
+				return;
+			}
+			try
+			{
+				Events.end.invoke(event);
+				set.invoke(event, FIELD_MAPPING, mapping);
+				set.invoke(event, FIELD_PATH, path == null ? null : path.toString());
+				set.invoke(event, FIELD_DETAIL, detail);
+				set.invoke(event, FIELD_BYTES, bytes);
+				commit.invoke(event);
+			}
+			catch(ReflectiveOperationException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Starts an event with a duration.
+	 * @param type Event type
+	 * @return Span to end later, or null if the event isn't being recorded
+	 */
+	static Span start(Type type)
+	{
+		Object event = null;
+		if(available)
+		{
+			try
+			{
+				if((Boolean)isEnabled.invoke(type.eventType))
+				{
+					event = newEvent.invoke(type.factory);
+					begin.invoke(event);
+				}
+			}
+			catch(ReflectiveOperationException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		if(event == null && !Journal.isEnabled())
+		{
+			return null;
+		}
+		return new Span(type, event);
+	}
+
+	/**
+	 * Ends an event started with {@link #start(Type)}, if it is being recorded.
+	 * @param span Span or null
+	 * @param mapping Mapping (watcher) number
+	 * @param path Relative path, or null
+	 * @param detail Extra information, or null
+	 * @param bytes Bytes involved, or 0
+	 */
+	static void end(Span span, int mapping, Object path, String detail, long bytes)
+	{
+		if(span != null)
+		{
+			span.end(mapping, path, detail, bytes);
+		}
+	}
+
+	/**
+	 * Records an event without a duration.
+	 * @param type Event type
+	 * @param mapping Mapping (watcher) number
+	 * @param path Relative path, or null
+	 * @param detail Extra information, or null
+	 */
+	static void record(Type type, int mapping, Object path, String detail)
+	{
+		end(start(type), mapping, path, detail, 0);
+	}
+}
@@ -0,0 +1,302 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies one source file to several targets, reading the source only once.
+ * Each target is written by its own thread from a queue of buffers, so all
+ * targets are written at the same time; a slow target only holds up the
+ * others when its queue is full. Buffers are shared by all the targets and
+ * reused once every target has written them.
+ */
+class FanOut
+{
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/** Maximum buffers waiting for each target */
+	private final static int QUEUE_BUFFERS = 16;
+
+	/** Maximum spare buffers kept for reuse */
+	private final static int SPARE_BUFFERS = 64;
+
+	/** Marks end of file in a target queue */
+	private final static Chunk END = new Chunk(new byte[0]);
+
+	/** Marks that the source could not be read, in a target queue */
+	private final static Chunk ABORT = new Chunk(new byte[0]);
+
+	private final static BlockingQueue<byte[]> spare =
+		new ArrayBlockingQueue<byte[]>(SPARE_BUFFERS);
+
+	private final static ExecutorService pool = Executors.newCachedThreadPool(
+		new ThreadFactory()
+		{
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Fan-out " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * Copies from a stream to several target files.
+	 * @param in Source stream (will be closed)
+	 * @param targets Target files
+	 * @param throttles Rate limits for each target
+	 * @param replace True to replace existing target files
+	 * @return Error for each target, or null where that target was copied OK
+	 * @throws IOException If there is an error reading the source
+	 */
+	static IOException[] copy(InputStream in, Path[] targets, Throttle[] throttles,
+		boolean replace) throws IOException
+	{
+		final OpenOption[] openOptions = replace ? new OpenOption[0]
+			: new OpenOption[] { StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE };
+		Writer[] writers = new Writer[targets.length];
+		Future<?>[] futures = new Future<?>[targets.length];
+		for(int i=0; i<targets.length; i++)
+		{
+			writers[i] = new Writer(targets[i], throttles[i], openOptions);
+			futures[i] = pool.submit(writers[i]);
+		}
+
+		IOException readError = null;
+		try
+		{
+			while(true)
+			{
+				byte[] buffer = spare.poll();
+				if(buffer == null)
+				{
+					buffer = new byte[BUFFER_SIZE];
+				}
+				int read;
+				try
+				{
+					read = in.read(buffer);
+				}
+				catch(IOException e)
+				{
+					spare.offer(buffer);
+					throw e;
+				}
+				if(read == -1)
+				{
+					spare.offer(buffer);
+					break;
+				}
+				Chunk chunk = new Chunk(buffer);
+				chunk.length = read;
+				chunk.users.set(writers.length);
+				for(Writer writer : writers)
+				{
+					writer.put(chunk);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			readError = e;
+		}
+		finally
+		{
+			in.close();
+			for(Writer writer : writers)
+			{
+				writer.put(readError == null ? END : ABORT);
+			}
+		}
+
+		IOException[] errors = new IOException[targets.length];
+		for(int i=0; i<targets.length; i++)
+		{
+			try
+			{
+				futures[i].get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			catch(ExecutionException e)
+			{
+				throw new Error(e.getCause());
+			}
+			errors[i] = writers[i].error;
+		}
+		if(readError != null)
+		{
+			throw readError;
+		}
+		return errors;
+	}
+
+	/**
+	 * Part of the source, queued for every target.
+	 */
+	private static class Chunk
+	{
+		private byte[] buffer;
+		private int length;
+		/** Targets that haven't finished with the buffer yet */
+		private AtomicInteger users = new AtomicInteger();
+
+		Chunk(byte[] buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Called by each target when it has finished with the buffer. The last
+		 * one returns it for reuse.
+		 */
+		void release()
+		{
+			if(users.decrementAndGet() == 0)
+			{
+				spare.offer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Writes buffers to one target file. If the copy doesn't complete, the
+	 * partial file is deleted so that it can't be taken for a copy.
+	 */
+	private static class Writer implements Runnable
+	{
+		private Path target;
+		private Throttle throttle;
+		private OpenOption[] openOptions;
+		private BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_BUFFERS);
+		private volatile IOException error;
+
+		Writer(Path target, Throttle throttle, OpenOption[] openOptions)
+		{
+			this.target = target;
+			this.throttle = throttle;
+			this.openOptions = openOptions;
+		}
+
+		/**
+		 * Adds a chunk to the queue, unless this writer has failed.
+		 * @param chunk Chunk
+		 */
+		void put(Chunk chunk)
+		{
+			if(error != null && chunk != END && chunk != ABORT)
+			{
+				chunk.release();
+				return;
+			}
+			try
+			{
+				queue.put(chunk);
+			}
+			catch(InterruptedException e)
+			{
+				chunk.release();
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			boolean opened = false, ended = false, complete = false;
+			try
+			{
+				throttle.acquireFile();
+				try(OutputStream out = Files.newOutputStream(target, openOptions))
+				{
+					opened = true;
+					while(!ended)
+					{
+						Chunk chunk = queue.take();
+						ended = chunk == END || chunk == ABORT;
+						complete = chunk == END;
+						if(!ended)
+						{
+							try
+							{
+								throttle.acquireBytes(chunk.length);
+								out.write(chunk.buffer, 0, chunk.length);
+							}
+							finally
+							{
+								chunk.release();
+							}
+						}
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				error = e;
+			}
+			catch(InterruptedException e)
+			{
+				error = new InterruptedIOException();
+			}
+			if(complete && error == null)
+			{
+				return;
+			}
+
+			if(opened)
+			{
+				try
+				{
+					Files.deleteIfExists(target);
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+
+			// Keep taking buffers so the reader doesn't get stuck.
+			try
+			{
+				while(!ended)
+				{
+					Chunk chunk = queue.take();
+					ended = chunk == END || chunk == ABORT;
+					if(!ended)
+					{
+						chunk.release();
+					}
+				}
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Reads the stat data of tracked files from a git index (.git/index), so that
+ * a working copy can be compared with a target without walking it. Git
+ * updates this stat data for every file it writes (pull, checkout, reset), so
+ * those changes show up; edits that haven't been staged do not.
+ * <p>
+ * Supports index versions 2 to 4. External git is not needed.
+ */
+class GitIndex
+{
+	private final static int SIGNATURE = 0x44495243; // "DIRC"
+
+	private final static int MODE_TYPE_MASK = 0170000, MODE_REGULAR = 0100000;
+	private final static int FLAG_EXTENDED = 0x4000, FLAG_STAGE_MASK = 0x3000,
+		FLAG_NAME_MASK = 0xfff;
+
+	/** Bytes in an entry before the name (version 2 and 3, not extended) */
+	private final static int ENTRY_FIXED_SIZE = 62;
+
+	/**
+	 * Finds the index file for a working copy.
+	 * @param source Root of the working copy
+	 * @return Index file, or null if the folder isn't a git working copy
+	 */
+	static Path find(Path source)
+	{
+		Path git = source.resolve(".git");
+		if(Files.isDirectory(git))
+		{
+			return git.resolve("index");
+		}
+		if(Files.isRegularFile(git))
+		{
+			// Linked worktree or submodule: ".git" file says where the real one is.
+			try
+			{
+				for(String line : Files.readAllLines(git, StandardCharsets.UTF_8))
+				{
+					if(line.startsWith("gitdir:"))
+					{
+						return source.resolve(line.substring(7).trim()).resolve("index");
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				// Treat as not a working copy.
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads an index into a digest tree of the tracked regular files, with the
+	 * size and modified time git recorded for each. Paths that filecopier skips
+	 * are left out.
+	 * @param index Index file
+	 * @param base Path representing the root (used to build relative paths)
+	 * @return Tree
+	 * @throws IOException Any error reading, or if the file isn't a git index
+	 */
+	static DigestTree read(Path index, Path base) throws IOException
+	{
+		DigestTree tree = new DigestTree();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+			Files.newInputStream(index))))
+		{
+			if(in.readInt() != SIGNATURE)
+			{
+				throw new IOException("Not a git index: " + index);
+			}
+			int version = in.readInt();
+			if(version < 2 || version > 4)
+			{
+				throw new IOException("Unsupported git index version " + version);
+			}
+			int count = in.readInt();
+			byte[] previous = new byte[0];
+			for(int i=0; i<count; i++)
+			{
+				in.skipBytes(8); // ctime
+				long mtimeSeconds = in.readInt() & 0xffffffffL;
+				int mtimeNanos = in.readInt();
+				in.skipBytes(8); // dev, ino
+				int mode = in.readInt();
+				in.skipBytes(8); // uid, gid
+				long size = in.readInt() & 0xffffffffL;
+				in.skipBytes(20); // object id
+				int flags = in.readUnsignedShort();
+				int fixed = ENTRY_FIXED_SIZE;
+				if(version >= 3 && (flags & FLAG_EXTENDED) != 0)
+				{
+					in.skipBytes(2);
+					fixed += 2;
+				}
+
+				byte[] name;
+				if(version == 4)
+				{
+					// Name is the end of the previous name replaced by a suffix.
+					int strip = (int)readOffset(in);
+					byte[] suffix = readToNul(in);
+					int keep = previous.length - strip;
+					if(keep < 0)
+					{
+						throw new IOException("Corrupt git index: " + index);
+					}
+					name = new byte[keep + suffix.length];
+					System.arraycopy(previous, 0, name, 0, keep);
+					System.arraycopy(suffix, 0, name, keep, suffix.length);
+				}
+				else
+				{
+					int length = flags & FLAG_NAME_MASK;
+					if(length < FLAG_NAME_MASK)
+					{
+						name = new byte[length];
+						in.readFully(name);
+						in.skipBytes(1);
+					}
+					else
+					{
+						name = readToNul(in);
+						length = name.length;
+					}
+					// Entries are padded with NULs to a multiple of 8 bytes.
+					int entrySize = (fixed + length + 8) & ~7;
+					in.skipBytes(entrySize - fixed - length - 1);
+				}
+				previous = name;
+
+				if((mode & MODE_TYPE_MASK) != MODE_REGULAR || (flags & FLAG_STAGE_MASK) != 0)
+				{
+					continue;
+				}
+				Path relative = base.resolve(new String(name, StandardCharsets.UTF_8));
+				if(Main.shouldSkipPath(relative))
+				{
+					continue;
+				}
+				tree.updateFile(relative, size, mtimeSeconds * 1000 + mtimeNanos / 1000000);
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Reads a variable-length offset as used in version 4 indexes.
+	 */
+	private static long readOffset(DataInputStream in) throws IOException
+	{
+		int b = in.readUnsignedByte();
+		long value = b & 0x7f;
+		while((b & 0x80) != 0)
+		{
+			b = in.readUnsignedByte();
+			value = ((value + 1) << 7) | (b & 0x7f);
+		}
+		return value;
+	}
+
+	private static byte[] readToNul(DataInputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(int b; (b = in.readUnsignedByte()) != 0;)
+		{
+			out.write(b);
+		}
+		return out.toByteArray();
+	}
+}
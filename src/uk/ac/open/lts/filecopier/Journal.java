@@ -0,0 +1,282 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journal of the same events as {@link Events}, written in debug mode to
+ * binary files in the state folder. Threads that record events only add them
+ * to a lock-free queue; a background thread writes them out, so debug mode
+ * doesn't slow copying down. Files are rotated when they get big.
+ * <p>
+ * Read journals with {@link JournalReader}.
+ * <p>
+ * File format: header int {@link #MAGIC}, then records of: long time (ms
+ * since epoch), long duration (ns, 0 if none), byte type (ordinal of
+ * {@link Events.Type}, or {@link #TYPE_DROPPED}), int mapping, UTF path, UTF
+ * detail, long bytes.
+ */
+class Journal
+{
+	/** "FCJ1" */
+	final static int MAGIC = 0x46434a31;
+
+	/** Type for a record counting events dropped because the queue was full */
+	final static int TYPE_DROPPED = 255;
+
+	/** Name of the current journal file; older ones are name.1, name.2, ... */
+	final static String FILE_NAME = "journal.fcj";
+
+	/** Number of older files kept */
+	final static int KEEP_FILES = 3;
+
+	private final static long MAX_FILE_SIZE = 8 * 1024 * 1024;
+
+	/** Events are dropped rather than let the queue grow past this */
+	private final static int MAX_PENDING = 100000;
+
+	/** Time the writer waits between checks of the queue, in ms */
+	private final static long WRITE_INTERVAL = 100;
+
+	private static volatile Journal current;
+
+	private Path folder;
+	private ConcurrentLinkedQueue<Record> pending = new ConcurrentLinkedQueue<Record>();
+	private AtomicInteger pendingCount = new AtomicInteger(), dropped = new AtomicInteger();
+	private Thread writer;
+	private volatile boolean stopping;
+
+	private static class Record
+	{
+		private long time = System.currentTimeMillis(), duration, bytes;
+		private int type, mapping;
+		private Object path;
+		private String detail;
+	}
+
+	private Journal(Path folder)
+	{
+		this.folder = folder;
+		writer = new Thread("Journal writer")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					write();
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Starts writing a journal, if not already doing so.
+	 * @param folder Folder for journal files
+	 */
+	static synchronized void start(Path folder)
+	{
+		if(current == null)
+		{
+			current = new Journal(folder);
+		}
+	}
+
+	/**
+	 * Stops writing the journal, waiting for everything queued to be written.
+	 */
+	static synchronized void stop()
+	{
+		Journal journal = current;
+		if(journal == null)
+		{
+			return;
+		}
+		current = null;
+		journal.stopping = true;
+		LockSupport.unpark(journal.writer);
+		try
+		{
+			journal.writer.join();
+		}
+		catch(InterruptedException e)
+		{
+		}
+	}
+
+	/**
+	 * @return True if events should be added
+	 */
+	static boolean isEnabled()
+	{
+		return current != null;
+	}
+
+	/**
+	 * Adds an event to be written. Does nothing if the journal is not running.
+	 * @param type Event type
+	 * @param mapping Mapping (watcher) number
+	 * @param path Relative path, or null
+	 * @param detail Extra information, or null
+	 * @param bytes Bytes involved, or 0
+	 * @param duration Duration in ns, or 0
+	 */
+	static void add(Events.Type type, int mapping, Object path, String detail,
+		long bytes, long duration)
+	{
+		Journal journal = current;
+		if(journal == null)
+		{
+			return;
+		}
+		if(journal.pendingCount.incrementAndGet() > MAX_PENDING)
+		{
+			journal.pendingCount.decrementAndGet();
+			journal.dropped.incrementAndGet();
+			return;
+		}
+		Record record = new Record();
+		record.type = type.ordinal();
+		record.mapping = mapping;
+		record.path = path;
+		record.detail = detail;
+		record.bytes = bytes;
+		record.duration = duration;
+		journal.pending.add(record);
+	}
+
+	/**
+	 * Writes queued records until stopped. Runs on the writer thread.
+	 * @throws IOException Any error writing
+	 */
+	private void write() throws IOException
+	{
+		Files.createDirectories(folder);
+		Path file = folder.resolve(FILE_NAME);
+		long start = Files.exists(file) ? Files.size(file) : 0;
+		DataOutputStream out = open(file, start);
+		try
+		{
+			while(true)
+			{
+				boolean stop = stopping;
+				int lost = dropped.getAndSet(0);
+				if(lost > 0)
+				{
+					Record record = new Record();
+					record.type = TYPE_DROPPED;
+					record.bytes = lost;
+					write(out, record);
+				}
+				for(Record record; (record = pending.poll()) != null;)
+				{
+					pendingCount.decrementAndGet();
+					write(out, record);
+					if(start + out.size() > MAX_FILE_SIZE)
+					{
+						out.close();
+						rotate(file);
+						start = 0;
+						out = open(file, start);
+					}
+				}
+				out.flush();
+				if(stop)
+				{
+					return;
+				}
+				LockSupport.parkNanos(WRITE_INTERVAL * 1000000L);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void write(DataOutputStream out, Record record) throws IOException
+	{
+		out.writeLong(record.time);
+		out.writeLong(record.duration);
+		out.writeByte(record.type);
+		out.writeInt(record.mapping);
+		out.writeUTF(record.path == null ? "" : record.path.toString());
+		out.writeUTF(record.detail == null ? "" : record.detail);
+		out.writeLong(record.bytes);
+	}
+
+	/**
+	 * Opens a journal file for appending, writing the header if it's new.
+	 * @param file File
+	 * @param size Existing size of file
+	 * @return Stream
+	 * @throws IOException Any error
+	 */
+	private static DataOutputStream open(Path file, long size) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+		if(size == 0)
+		{
+			out.writeInt(MAGIC);
+		}
+		return out;
+	}
+
+	/**
+	 * Renames the current file to name.1, name.1 to name.2, and so on.
+	 * @param file Current file
+	 * @throws IOException Any error
+	 */
+	private static void rotate(Path file) throws IOException
+	{
+		Files.deleteIfExists(getOldFile(file, KEEP_FILES));
+		for(int i = KEEP_FILES - 1; i >= 1; i--)
+		{
+			Path old = getOldFile(file, i);
+			if(Files.exists(old))
+			{
+				Files.move(old, getOldFile(file, i + 1));
+			}
+		}
+		Files.move(file, getOldFile(file, 1));
+	}
+
+	/**
+	 * @param file Current file
+	 * @param index Number of rotations ago
+	 * @return Older file
+	 */
+	static Path getOldFile(Path file, int index)
+	{
+		return file.resolveSibling(file.getFileName() + "." + index);
+	}
+
+}
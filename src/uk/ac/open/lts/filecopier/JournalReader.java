@@ -0,0 +1,120 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Prints journal files written by {@link Journal} as text, one line per
+ * event. With no arguments, prints all the journal files in the state folder,
+ * oldest first.
+ * <p>
+ * java -cp filecopier.jar uk.ac.open.lts.filecopier.JournalReader [file...]
+ */
+public class JournalReader
+{
+	/**
+	 * @param args Journal files to print (optional)
+	 * @throws IOException Any error reading
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		List<Path> files = new ArrayList<Path>();
+		if(args.length == 0)
+		{
+			Path current = Main.getStateFolder().resolve(Journal.FILE_NAME);
+			for(int i = Journal.KEEP_FILES; i >= 1; i--)
+			{
+				files.add(Journal.getOldFile(current, i));
+			}
+			files.add(current);
+		}
+		else
+		{
+			for(String arg : args)
+			{
+				files.add(Paths.get(arg));
+			}
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+		for(Path file : files)
+		{
+			if(args.length == 0 && !Files.exists(file))
+			{
+				continue;
+			}
+			read(file, out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Prints one journal file.
+	 * @param file File
+	 * @param out Output for text lines
+	 * @throws IOException Any error reading, or if the file isn't a journal
+	 */
+	static void read(Path file, Writer out) throws IOException
+	{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT);
+		Events.Type[] types = Events.Type.values();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+			Files.newInputStream(file))))
+		{
+			if(in.readInt() != Journal.MAGIC)
+			{
+				throw new IOException("Not a journal file: " + file);
+			}
+			while(true)
+			{
+				long time;
+				try
+				{
+					time = in.readLong();
+				}
+				catch(EOFException e)
+				{
+					return;
+				}
+				long duration = in.readLong();
+				int type = in.readUnsignedByte();
+				int mapping = in.readInt();
+				String path = in.readUTF(), detail = in.readUTF();
+				long bytes = in.readLong();
+
+				String typeName;
+				if(type == Journal.TYPE_DROPPED)
+				{
+					typeName = "DROPPED";
+				}
+				else
+				{
+					typeName = type < types.length ? types[type].name() : "#" + type;
+				}
+				out.write(format.format(new Date(time)) + " " + typeName + " " + mapping
+					+ " " + String.format(Locale.ROOT, "%.3fms", duration / 1000000.0) + " " + bytes
+					+ " " + path + (detail.isEmpty() ? "" : " (" + detail + ")") + "\n");
+			}
+		}
+	}
+}
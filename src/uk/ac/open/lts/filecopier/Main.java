@@ -24,13 +24,13 @@ import java.io.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.List;
-import java.util.regex.*;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.*;
 import javax.swing.text.*;
 
 @SuppressWarnings("serial")
-public class Main extends JFrame implements ActionQueue.Handler
+public class Main extends JFrame implements ActionQueue.Handler, Watcher.Owner
 {
 	private JTextPane pane;
 	private DefaultStyledDocument doc;
@@ -43,10 +43,24 @@ public class Main extends JFrame implements ActionQueue.Handler
 	private boolean status = false, queueBusy = false,
 		error = false, showingError = false, debug = false;
 	private Set<Watcher> waitingStartup = new HashSet<Watcher>();
+	private Throttle bulkThrottle, interactiveThrottle;
+	private Verifier verifier = new Verifier();
+	private JMenu wipeMenu, checkMenu;
+	private ControlServer controlServer;
+
+	/** Running watchers by source folder; only used on the event thread */
+	private Map<Path, Running> running = new HashMap<Path, Running>();
+	/** Source folders whose watcher has stopped but still has queued actions */
+	private Set<Path> draining = new HashSet<Path>();
+	/** Watchers to start once the old watcher for that folder has finished */
+	private Map<Path, WatcherSettings> pendingStart = new HashMap<Path, WatcherSettings>();
 
 	private static String VERSION = "1.16";
 	private static int MAX_LINES = 500;
 
+	/** Wait for the settings file to stop changing for this many ms before reloading */
+	private final static long SETTINGS_DELAY = 500;
+
 	/**
 	 * Gets synch object used during startup to prevent multiple folder
 	 * searches at once (non-Windows platforms only).
@@ -57,6 +71,25 @@ public class Main extends JFrame implements ActionQueue.Handler
 		return startupSynch;
 	}
 	
+	/**
+	 * Gets folder used to store state between runs, creating it if needed.
+	 * @return State folder
+	 */
+	public static Path getStateFolder()
+	{
+		Path folder = FileSystems.getDefault().getPath(System.getProperty("user.home"),
+			".filecopier.state");
+		try
+		{
+			Files.createDirectories(folder);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		return folder;
+	}
+
 	/**
 	 * @return Action queue
 	 */
@@ -120,9 +153,12 @@ public class Main extends JFrame implements ActionQueue.Handler
 		});
 		menu.add(clear);
 
-		JMenu wipeMenu = new JMenu("Wipe and re-copy");
+		wipeMenu = new JMenu("Wipe and re-copy");
 		menu.add(wipeMenu);
 
+		checkMenu = new JMenu("Check sync");
+		menu.add(checkMenu);
+
 		pane.setComponentPopupMenu(menu);
 
 		JScrollPane scroll = new JScrollPane(pane, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS, 
@@ -148,109 +184,419 @@ public class Main extends JFrame implements ActionQueue.Handler
 			}
 		});
 		
-		parseArgs(wipeMenu);
+		parseArgs();
+
+		// Save state (e.g. digest trees) when exiting.
+		Runtime.getRuntime().addShutdownHook(new Thread("Save state")
+		{
+			@Override
+			public void run()
+			{
+				synchronized(watchers)
+				{
+					for(Watcher watcher : watchers)
+					{
+						watcher.saveState();
+					}
+				}
+				Journal.stop();
+			}
+		});
 
 		updateStatus();
 	}
 
-	/**
-	 * Settings lines must be of the form "c:\source => c:\target".
-	 */
-	private final static Pattern SETTINGS_REGEX = Pattern.compile(
-		"^(.*[^ ]) ?=> ?([^ ].*)$");
-	
 	/**
 	 * Parse the command-line arguments.
-	 * @param wipeMenu Menu to add 'wipe server' options to
 	 */
-	private void parseArgs(JMenu wipeMenu)
+	private void parseArgs()
 	{
 		addText("FileCopier ");
 		addText(VERSION, "white");
 		addText("\n\n");
 
-		Path settings = FileSystems.getDefault().getPath(System.getProperty("user.home"), ".filecopier");
+		Path settingsFile = FileSystems.getDefault().getPath(System.getProperty("user.home"), ".filecopier");
+		loadSettings(settingsFile);
+		watchSettings(settingsFile);
+	}
+
+	/**
+	 * Starts, stops or moves the control server to match the settings.
+	 * @param portSetting Port setting, or null if not set
+	 */
+	private void updateControlServer(String portSetting)
+	{
+		int port = portSetting == null ? 0 : Options.parsePort(portSetting);
+		if(controlServer != null)
+		{
+			if(controlServer.getPort() == port)
+			{
+				return;
+			}
+			controlServer.stop();
+			controlServer = null;
+		}
+		if(port != 0)
+		{
+			try
+			{
+				controlServer = new ControlServer(queue, port);
+			}
+			catch(IOException | IllegalArgumentException e)
+			{
+				addError("Unable to start control server: ", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Loads the settings file. Watchers are started for folders that are new,
+	 * and stopped for folders that have been removed; a folder whose settings
+	 * have changed is stopped and then started again. Watchers that haven't
+	 * changed are left alone. Global rate limits are updated in place.
+	 * <p>
+	 * Called on the event thread (or during startup).
+	 * @param settingsFile Settings file
+	 */
+	private void loadSettings(Path settingsFile)
+	{
+		Settings settings;
 		try(BufferedReader reader = new BufferedReader(
-			new InputStreamReader(new FileInputStream(settings.toFile()), "UTF-8")))
+			new InputStreamReader(new FileInputStream(settingsFile.toFile()), "UTF-8")))
 		{
-			for(int index=1;; index++)
+			settings = new Settings(reader);
+		}
+		catch(IOException e)
+		{
+			addError("Unable to load configuration file: ", "" + settingsFile); 
+			return;
+		}
+		for(Settings.Problem problem : settings.getProblems())
+		{
+			addError(problem.getMessage(), problem.getDetail());
+		}
+		debug = settings.isDebug();
+		if(debug)
+		{
+			Journal.start(getStateFolder());
+		}
+		else
+		{
+			Journal.stop();
+		}
+		synchronized(watchers)
+		{
+			for(Watcher watcher : watchers)
 			{
-				String line = reader.readLine();
-				if(line == null)
-				{
-					break;
-				}
-				// Ignore blank lines or those that begin with #
-				if(line.trim().equals("") || line.startsWith("#"))
-				{
-					continue;
-				}
-				Matcher m = SETTINGS_REGEX.matcher(line);
-				if (!m.matches())
-				{
-					addError("Settings line does not match pattern (c:\\source => c:\\target): ", 
-						"" + index);
-					continue;
-				}
-				String sourceText = m.group(1).trim(), targetText = m.group(2).trim();
-				if (sourceText.toLowerCase().equals("debug")) {
-					debug = true;
-					continue;
-				}
-				FileSystem fileSystem = FileSystems.getDefault();
-				final Path source = fileSystem.getPath(sourceText),
-					target = fileSystem.getPath(targetText);
-				if(!Files.exists(source))
+				watcher.setDebug(debug);
+			}
+		}
+		if(bulkThrottle == null)
+		{
+			bulkThrottle = Throttle.create(settings.getOptions(),
+				Options.BULK_BYTES, Options.BULK_FILES, null);
+			interactiveThrottle = Throttle.create(settings.getOptions(),
+				Options.INTERACTIVE_BYTES, Options.INTERACTIVE_FILES, null);
+		}
+		else
+		{
+			bulkThrottle.update(settings.getOptions(), Options.BULK_BYTES, Options.BULK_FILES);
+			interactiveThrottle.update(settings.getOptions(),
+				Options.INTERACTIVE_BYTES, Options.INTERACTIVE_FILES);
+		}
+		updateControlServer(settings.getOptions().get(Options.CONTROL_PORT));
+
+		// Lines with the same source share one watcher, so that the source is
+		// only watched and read once.
+		Map<Path, WatcherSettings> wanted = new LinkedHashMap<Path, WatcherSettings>();
+		for(Settings.Mapping mapping : settings.getMappings())
+		{
+			int index = mapping.getIndex();
+			String sourceText = mapping.getSource(), targetText = mapping.getTarget();
+			FileSystem fileSystem = FileSystems.getDefault();
+			final Path source = fileSystem.getPath(sourceText),
+				target = fileSystem.getPath(targetText);
+			if(!Files.exists(source))
+			{
+				addError("Source folder not found: ", sourceText);
+				continue;
+			}
+			if(!Files.isDirectory(source))
+			{
+				addError("Source is not a folder: ", sourceText);
+				continue;
+			}
+			if(!Files.exists(target))
+			{
+				addError("Target folder not found: ", targetText);
+				continue;
+			}
+			if(!Files.isDirectory(target))
+			{
+				addError("Target is not a folder: ", targetText);
+				continue;
+			}
+			if(!Files.isWritable(target))
+			{
+				addError("Target is not writable: ", targetText);
+			}
+
+			Path key = source.normalize();
+			WatcherSettings watcherSettings = wanted.get(key);
+			if(watcherSettings == null)
+			{
+				watcherSettings = new WatcherSettings(key, index);
+				wanted.put(key, watcherSettings);
+			}
+			watcherSettings.add(target, mapping.getOptions());
+		}
+
+		// Stop watchers that are no longer wanted or have changed.
+		for(Running old : new ArrayList<Running>(running.values()))
+		{
+			WatcherSettings next = wanted.get(old.settings.source);
+			if(next == null || !next.signature.equals(old.settings.signature))
+			{
+				stopWatcher(old);
+			}
+		}
+
+		// Start new watchers, or wait for the old one to finish if it's stopping.
+		pendingStart.clear();
+		for(WatcherSettings next : wanted.values())
+		{
+			if(draining.contains(next.source))
+			{
+				pendingStart.put(next.source, next);
+			}
+			else if(!running.containsKey(next.source))
+			{
+				startWatcher(next);
+			}
+		}
+		updateStatus();
+	}
+
+	/**
+	 * Starts a watcher and adds it to the menus.
+	 * @param watcherSettings Settings
+	 */
+	private void startWatcher(WatcherSettings watcherSettings)
+	{
+		List<Target> targets = new ArrayList<Target>();
+		for(int i=0; i<watcherSettings.targets.size(); i++)
+		{
+			targets.add(new Target(this, watcherSettings.targets.get(i),
+				watcherSettings.options.get(i)));
+		}
+		int index = watcherSettings.index;
+		Path source = watcherSettings.source;
+		final Watcher watcher;
+		synchronized(watchers)
+		{
+			watcher = new Watcher(this, source, targets,
+				"c" + (index % COLORS.length), index, debug);
+			watchers.add(watcher);
+		}
+		waitingStartup.add(watcher);
+		watcher.start();
+		final int finalNum = index;
+		final Running started = new Running();
+		started.settings = watcherSettings;
+		started.watcher = watcher;
+		started.wipeItem = new JMenuItem(new AbstractAction(finalNum + " " + source)
+		{
+			@Override
+			public void actionPerformed(ActionEvent arg0)
+			{
+				watcher.wipe();
+			}
+		});
+		wipeMenu.add(started.wipeItem);
+		started.checkItem = new JMenuItem(new AbstractAction(finalNum + " " + source)
+		{
+			@Override
+			public void actionPerformed(ActionEvent arg0)
+			{
+				watcher.check();
+			}
+		});
+		checkMenu.add(started.checkItem);
+		running.put(source, started);
+	}
+
+	/**
+	 * Stops a watcher. Anything it has already queued still happens; after
+	 * that its state is saved and, if the folder is still wanted with new
+	 * settings, a new watcher is started.
+	 * @param old Running watcher
+	 */
+	private void stopWatcher(final Running old)
+	{
+		final Path source = old.settings.source;
+		running.remove(source);
+		draining.add(source);
+		wipeMenu.remove(old.wipeItem);
+		checkMenu.remove(old.checkItem);
+		waitingStartup.remove(old.watcher);
+		old.watcher.shutdown();
+		queue.remove(old.watcher, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				old.watcher.saveState();
+				for(Target target : old.watcher.getTargets())
 				{
-					addError("Source folder not found: ", sourceText);
-					continue;
+					target.release();
 				}
-				if(!Files.isDirectory(source))
+				synchronized(watchers)
 				{
-					addError("Source is not a folder: ", sourceText);
-					continue;
+					watchers.remove(old.watcher);
 				}
-				if(!Files.exists(target))
+				SwingUtilities.invokeLater(new Runnable()
 				{
-					addError("Target folder not found: ", targetText);
-					continue;
-				}
-				if(!Files.isDirectory(target))
+					public void run()
+					{
+						draining.remove(source);
+						WatcherSettings next = pendingStart.remove(source);
+						if(next != null)
+						{
+							startWatcher(next);
+							updateStatus();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Starts a thread which reloads settings when the settings file changes.
+	 * @param settingsFile Settings file
+	 */
+	private void watchSettings(final Path settingsFile)
+	{
+		Thread thread = new Thread("Settings watcher")
+		{
+			@Override
+			public void run()
+			{
+				try(WatchService service = settingsFile.getFileSystem().newWatchService())
 				{
-					addError("Target is not a folder: ", targetText);
-					continue;
+					settingsFile.getParent().register(service,
+						StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+					while(true)
+					{
+						WatchKey key = service.take();
+						boolean changed = false;
+						for(WatchEvent<?> event : key.pollEvents())
+						{
+							// Overflow has no context, so might include the file.
+							if(event.context() == null ||
+								settingsFile.getFileName().equals(event.context()))
+							{
+								changed = true;
+							}
+						}
+						key.reset();
+						if(!changed)
+						{
+							continue;
+						}
+
+						// Editors may write the file in several steps, so wait until
+						// it stops changing.
+						while((key = service.poll(SETTINGS_DELAY, TimeUnit.MILLISECONDS)) != null)
+						{
+							key.pollEvents();
+							key.reset();
+						}
+						SwingUtilities.invokeLater(new Runnable()
+						{
+							public void run()
+							{
+								addText("Reloading settings\n", "white");
+								loadSettings(settingsFile);
+							}
+						});
+					}
 				}
-				if(!Files.isWritable(target))
+				catch(IOException e)
 				{
-					addError("Target is not writable: ", targetText);
+					e.printStackTrace();
+					addError("Unable to watch configuration file: ", "" + settingsFile);
 				}
-				
-				final Watcher watcher;
-				synchronized(watchers)
+				catch(InterruptedException e)
 				{
-					watcher = new Watcher(this, source, target, "c" + (index % COLORS.length), index, debug);
-					watchers.add(watcher);
+					return;
 				}
-				waitingStartup.add(watcher);
-				final int finalNum = index;
-				wipeMenu.add(new JMenuItem(new AbstractAction(finalNum + " " + source)
-				{
-					@Override
-					public void actionPerformed(ActionEvent arg0)
-					{
-						watcher.wipe();
-					}
-				}));
 			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Settings for one watcher (all the lines with the same source folder).
+	 */
+	private static class WatcherSettings
+	{
+		private Path source;
+		private int index;
+		private List<Path> targets = new ArrayList<Path>();
+		private List<Options> options = new ArrayList<Options>();
+		private String signature = "";
+
+		WatcherSettings(Path source, int index)
+		{
+			this.source = source;
+			this.index = index;
 		}
-		catch(IOException e)
+
+		void add(Path target, Options targetOptions)
 		{
-			addError("Unable to load configuration file: ", "" + settings); 
-			return;
+			targets.add(target);
+			options.add(targetOptions);
+			signature += Target.getSignature(target, targetOptions) + "\n";
 		}
 	}
+
+	/**
+	 * A watcher that is running, with the settings it was started from.
+	 */
+	private static class Running
+	{
+		private WatcherSettings settings;
+		private Watcher watcher;
+		private JMenuItem wipeItem, checkItem;
+	}
+
+	/**
+	 * @return Verifier used to check copied files
+	 */
+	public Verifier getVerifier()
+	{
+		return verifier;
+	}
+
+	/**
+	 * @return Limits for bulk work across all mappings
+	 */
+	public Throttle getBulkThrottle()
+	{
+		return bulkThrottle;
+	}
+
+	/**
+	 * @return Limits for single-file work across all mappings
+	 */
+	public Throttle getInteractiveThrottle()
+	{
+		return interactiveThrottle;
+	}
 	
-	void addError(String start, String text)
+	public void addError(String start, String text)
 	{
 		addText(start);
 		if(text != null)
@@ -276,63 +622,108 @@ public class Main extends JFrame implements ActionQueue.Handler
 		{
 			throw new NullPointerException("Text may not be null");
 		}
-		Runnable r = new Runnable()
+		if(SwingUtilities.isEventDispatchThread())
+		{
+			insertText(text, attributes);
+			return;
+		}
+
+		// Text from other threads is held until the end of the line, so that
+		// lines from different watchers or workers do not get mixed together.
+		final List<Segment> line = pendingLine.get();
+		line.add(new Segment(text, attributes));
+		if(text.indexOf('\n') == -1)
+		{
+			return;
+		}
+		final Segment[] segments = line.toArray(new Segment[line.size()]);
+		line.clear();
+		SwingUtilities.invokeLater(new Runnable()
 		{
 			public void run()
 			{
-				try
+				for(Segment segment : segments)
 				{
-					int currentLength = doc.getLength();
+					insertText(segment.text, segment.attributes);
+				}
+			}
+		});
+	}
 
-					// Count number of lines.
-					for(int i=0; i<text.length(); i++)
-					{
-						if(text.charAt(i) == '\n')
-						{
-							displayLines++;
-						}
-					}
+	/**
+	 * Part of a line of text waiting to be displayed.
+	 */
+	private static class Segment
+	{
+		private String text;
+		private AttributeSet attributes;
 
-					// If there's too many, delete text from the front.
-					while(displayLines > MAX_LINES)
-					{
-						// Find first LF.
-						int lf = -1;
-						for(int pos = 0; pos < currentLength; pos+=128)
-						{
-							String text = doc.getText(0, 128);
-							lf = text.indexOf('\n');
-							if (lf != -1)
-							{
-								lf += pos;
-								break;
-							}
-						}
-						// This is not possible if there's at least one line.
-						assert(lf != -1);
+		Segment(String text, AttributeSet attributes)
+		{
+			this.text = text;
+			this.attributes = attributes;
+		}
+	}
 
-						// Delete up to and including LF.
-						doc.remove(0, lf + 1);
-						currentLength -= (lf + 1);
-						displayLines --;
-					}
+	private ThreadLocal<List<Segment>> pendingLine = new ThreadLocal<List<Segment>>()
+	{
+		@Override
+		protected List<Segment> initialValue()
+		{
+			return new ArrayList<Segment>();
+		}
+	};
 
-					// Insert new string.
-					doc.insertString(currentLength, text, attributes);
+	/**
+	 * Adds text to the display. Must be called on the event thread.
+	 * @param text Text
+	 * @param attributes Style
+	 */
+	private void insertText(String text, AttributeSet attributes)
+	{
+		try
+		{
+			int currentLength = doc.getLength();
+
+			// Count number of lines.
+			for(int i=0; i<text.length(); i++)
+			{
+				if(text.charAt(i) == '\n')
+				{
+					displayLines++;
 				}
-				catch(BadLocationException e)
+			}
+
+			// If there's too many, delete text from the front.
+			while(displayLines > MAX_LINES)
+			{
+				// Find first LF.
+				int lf = -1;
+				for(int pos = 0; pos < currentLength; pos+=128)
 				{
-					throw new Error(e);
+					String start = doc.getText(0, 128);
+					lf = start.indexOf('\n');
+					if (lf != -1)
+					{
+						lf += pos;
+						break;
+					}
 				}
+				// This is not possible if there's at least one line.
+				assert(lf != -1);
+
+				// Delete up to and including LF.
+				doc.remove(0, lf + 1);
+				currentLength -= (lf + 1);
+				displayLines --;
 			}
-		};
-		if(SwingUtilities.isEventDispatchThread())
-		{
-			r.run();
+
+			// Insert new string.
+			doc.insertString(currentLength, text, attributes);
 		}
-		else
+		catch(BadLocationException e)
 		{
-			SwingUtilities.invokeLater(r);
+			throw new Error(e);
 		}
 	}
 
@@ -0,0 +1,508 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Information about a watcher which is kept between runs: a digest tree of the
+ * source folder (updated from watch events) and one of each target folder
+ * (updated as files are copied and deleted). If the source tree has the same
+ * digest as a target tree, that target is in sync.
+ * <p>
+ * The saved state is deleted when it is loaded, so that if filecopier doesn't
+ * exit cleanly, the targets are scanned again next time.
+ */
+class MappingState
+{
+	private final static int FILE_VERSION = 2;
+
+	private Path source, file;
+	private DigestTree sourceTree = new DigestTree();
+	private Map<Path, DigestTree> targetTrees = new ConcurrentHashMap<Path, DigestTree>();
+	private Set<Path> targetsKnown =
+		Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+	private volatile boolean sourceKnown;
+	/**
+	 * Held while changing which targets are known, so that a save sees them
+	 * all at one point.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * @param source Source folder
+	 * @param targets Target folders
+	 */
+	MappingState(Path source, List<Path> targets)
+	{
+		this.source = source;
+		for(Path target : targets)
+		{
+			targetTrees.put(target, new DigestTree());
+		}
+		file = Main.getStateFolder().resolve(getKey(source) + ".digests");
+	}
+
+	/**
+	 * Gets a key used to name state files for a source folder.
+	 * @param source Source folder
+	 * @return Key (hex string)
+	 */
+	static String getKey(Path source)
+	{
+		return getKey(source.toString());
+	}
+
+	/**
+	 * Gets a key used to name state files.
+	 * @param value Value that identifies the file
+	 * @return Key (hex string)
+	 */
+	static String getKey(String value)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+				value.getBytes("UTF-8"));
+			StringBuilder out = new StringBuilder();
+			for(int i=0; i<8; i++)
+			{
+				out.append(String.format("%02x", hash[i]));
+			}
+			return out.toString();
+		}
+		catch(NoSuchAlgorithmException|UnsupportedEncodingException e)
+		{
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Loads state saved last time, if any. The source tree is loaded but not
+	 * marked known, as the source may have changed since. Saved trees for
+	 * folders that are no longer targets are ignored.
+	 */
+	public void load()
+	{
+		if(!Files.exists(file))
+		{
+			return;
+		}
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+			Files.newInputStream(file))))
+		{
+			if(in.readInt() == FILE_VERSION)
+			{
+				sourceTree.load(in);
+				int count = in.readInt();
+				for(int i=0; i<count; i++)
+				{
+					Path target = source.getFileSystem().getPath(in.readUTF());
+					DigestTree tree = targetTrees.get(target);
+					if(tree == null)
+					{
+						tree = new DigestTree();
+					}
+					tree.load(in);
+					if(targetTrees.containsKey(target))
+					{
+						targetsKnown.add(target);
+					}
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			sourceTree.clear();
+			for(DigestTree tree : targetTrees.values())
+			{
+				tree.clear();
+			}
+			targetsKnown.clear();
+		}
+		try
+		{
+			Files.delete(file);
+		}
+		catch(IOException e)
+		{
+			// If it can't be deleted, it can't be trusted after a crash.
+			e.printStackTrace();
+			targetsKnown.clear();
+		}
+	}
+
+	/**
+	 * Saves state, if any target tree is known. Copies are still running when
+	 * this is called at exit, so the trees are written to memory first as they
+	 * are at one point, and the file is replaced in one go.
+	 */
+	public void save()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try
+		{
+			synchronized(lock)
+			{
+				if(targetsKnown.isEmpty())
+				{
+					return;
+				}
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(FILE_VERSION);
+				sourceTree.save(out);
+				List<Path> known = new ArrayList<Path>(targetsKnown);
+				out.writeInt(known.size());
+				for(Path target : known)
+				{
+					out.writeUTF(target.toString());
+					targetTrees.get(target).save(out);
+				}
+				out.flush();
+			}
+			Path temp = file.resolveSibling(file.getFileName() + ".new");
+			Files.write(temp, bytes.toByteArray());
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return True if the source tree is up to date
+	 */
+	public boolean isSourceKnown()
+	{
+		return sourceKnown;
+	}
+
+	/**
+	 * @param target Target folder
+	 * @return True if the tree for that target is up to date
+	 */
+	public boolean isTargetKnown(Path target)
+	{
+		return targetsKnown.contains(target);
+	}
+
+	/**
+	 * Clears the source tree before it is filled in by a walk of the source.
+	 */
+	public void startSourceScan()
+	{
+		sourceTree.clear();
+	}
+
+	/**
+	 * Records a file or folder found in a walk of the source.
+	 * @param relative Relative path
+	 * @param attrs Attributes
+	 */
+	public void sourceFound(Path relative, BasicFileAttributes attrs)
+	{
+		sourceTree.update(relative, attrs);
+	}
+
+	/**
+	 * Marks the source tree as up to date after a walk.
+	 */
+	public void finishSourceScan()
+	{
+		sourceKnown = true;
+	}
+
+	/**
+	 * Updates the source tree for a watch event. Called on the watcher thread.
+	 * @param sourcePath Full path (null for overflow)
+	 * @param relative Relative path (null for overflow)
+	 * @param kind Event kind
+	 */
+	public void sourceEvent(Path sourcePath, Path relative, Kind<?> kind)
+	{
+		if(kind.equals(StandardWatchEventKinds.OVERFLOW))
+		{
+			sourceKnown = false;
+			return;
+		}
+		if(kind.equals(StandardWatchEventKinds.ENTRY_DELETE))
+		{
+			sourceTree.remove(relative);
+			return;
+		}
+		try
+		{
+			BasicFileAttributes attrs = Files.readAttributes(sourcePath,
+				BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if(attrs.isDirectory() && kind.equals(StandardWatchEventKinds.ENTRY_CREATE))
+			{
+				// A new folder may have been moved in with contents.
+				scan(sourcePath, source, sourceTree, null);
+			}
+			else
+			{
+				sourceTree.update(relative, attrs);
+			}
+		}
+		catch(NoSuchFileException e)
+		{
+			sourceTree.remove(relative);
+		}
+		catch(IOException e)
+		{
+			sourceKnown = false;
+		}
+	}
+
+	/**
+	 * Walks the whole source folder to update the source tree.
+	 * @throws IOException Any error
+	 */
+	public void scanSource() throws IOException
+	{
+		startSourceScan();
+		scan(source, source, sourceTree, null);
+		finishSourceScan();
+	}
+
+	/**
+	 * Walks a whole target folder to update its tree. Files that have the same
+	 * size as the source and are not older are assumed to match. Should be
+	 * called when the source tree is known.
+	 * @param target Target folder
+	 * @param trash Trash folder to ignore, or null
+	 * @throws IOException Any error
+	 */
+	public void scanTarget(Path target, Path trash) throws IOException
+	{
+		DigestTree tree;
+		synchronized(lock)
+		{
+			// Not saved while only part of it is known.
+			targetsKnown.remove(target);
+			tree = targetTrees.get(target);
+		}
+		tree.clear();
+		scan(target, target, tree, trash);
+		synchronized(lock)
+		{
+			// A staging folder may have been discarded in the meantime.
+			if(targetTrees.get(target) == tree)
+			{
+				targetsKnown.add(target);
+			}
+		}
+	}
+
+	private void scan(final Path start, final Path root, final DigestTree tree,
+		final Path ignore) throws IOException
+	{
+		final boolean isTarget = tree != sourceTree;
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+				throws IOException
+			{
+				Path relative = root.relativize(dir);
+				if(Main.shouldSkipPath(relative) || dir.equals(ignore))
+				{
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				tree.update(relative, attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				throws IOException
+			{
+				Path relative = root.relativize(file);
+				if(isTarget && ResumableCopy.isPartial(file))
+				{
+					// Unfinished copy, which may be resumed.
+					return FileVisitResult.CONTINUE;
+				}
+				if(isTarget)
+				{
+					// Target copies have their own modified time, so record the
+					// source time if the file looks the same.
+					try
+					{
+						BasicFileAttributes sourceAttrs = Files.readAttributes(
+							source.resolve(relative), BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+						if(sourceAttrs.size() == attrs.size() && 
+							attrs.lastModifiedTime().compareTo(sourceAttrs.lastModifiedTime()) >= 0)
+						{
+							attrs = sourceAttrs;
+						}
+					}
+					catch(NoSuchFileException e)
+					{
+						// Only in target.
+					}
+				}
+				tree.update(relative, attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+				throws IOException
+			{
+				// Files may be deleted while walking.
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Starts a tree for a staging folder, where a new copy of a target is
+	 * built before being swapped into place. Until then the staging folder
+	 * can be used like a target.
+	 * @param staging Staging folder
+	 */
+	public void startStaging(Path staging)
+	{
+		targetTrees.put(staging, new DigestTree());
+	}
+
+	/**
+	 * Uses the tree of a staging folder for the target, after the staging
+	 * folder has been renamed to the target.
+	 * @param staging Staging folder
+	 * @param target Target folder
+	 */
+	public void swapStaging(Path staging, Path target)
+	{
+		synchronized(lock)
+		{
+			targetTrees.put(target, targetTrees.remove(staging));
+			targetsKnown.remove(staging);
+			targetsKnown.add(target);
+		}
+	}
+
+	/**
+	 * Forgets a staging folder that won't be used.
+	 * @param staging Staging folder
+	 */
+	public void discardStaging(Path staging)
+	{
+		synchronized(lock)
+		{
+			targetTrees.remove(staging);
+			targetsKnown.remove(staging);
+		}
+	}
+
+	/**
+	 * Records that a file or folder was deleted from a target.
+	 * @param target Target folder
+	 * @param relative Relative path
+	 */
+	public void targetRemoved(Path target, Path relative)
+	{
+		targetTrees.get(target).remove(relative);
+	}
+
+	/**
+	 * Records that a folder was created in a target.
+	 * @param target Target folder
+	 * @param relative Relative path
+	 */
+	public void targetFolder(Path target, Path relative)
+	{
+		targetTrees.get(target).addFolder(relative);
+	}
+
+	/**
+	 * Records that a file was copied to a target.
+	 * @param target Target folder
+	 * @param relative Relative path
+	 * @param sourceAttrs Attributes of source file (read before copying)
+	 */
+	public void targetCopied(Path target, Path relative, BasicFileAttributes sourceAttrs)
+	{
+		targetTrees.get(target).update(relative, sourceAttrs);
+	}
+
+	/**
+	 * Compares the source tree with a target tree.
+	 * @param target Target folder
+	 * @param base Path representing the root
+	 * @return Differences
+	 */
+	public DigestTree.Diff diff(Path target, Path base)
+	{
+		return DigestTree.diff(sourceTree, targetTrees.get(target), base);
+	}
+
+	/**
+	 * Compares the files in a git index with a target tree. Only paths that
+	 * differ are checked in the source: files the index says have changed
+	 * are copied unless they actually match, and paths only in the target are
+	 * deleted unless they exist in the source (untracked files).
+	 * @param target Target folder
+	 * @param index Tree read from the git index
+	 * @param base Path representing the root
+	 * @return Differences
+	 */
+	public DigestTree.Diff gitDiff(Path target, DigestTree index, Path base)
+	{
+		DigestTree tree = targetTrees.get(target);
+		DigestTree.Diff candidates = DigestTree.diff(index, tree, base), diff =
+			new DigestTree.Diff();
+		for(Path path : candidates.copies)
+		{
+			try
+			{
+				BasicFileAttributes attrs = Files.readAttributes(source.resolve(path),
+					BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				if(!tree.matches(path, attrs))
+				{
+					diff.copies.add(path);
+				}
+			}
+			catch(IOException e)
+			{
+				// Gone from the working copy but still in the index.
+				diff.deletes.add(path);
+			}
+		}
+		for(Path path : candidates.deletes)
+		{
+			if(!Files.exists(source.resolve(path), LinkOption.NOFOLLOW_LINKS))
+			{
+				diff.deletes.add(path);
+			}
+		}
+		return diff;
+	}
+}
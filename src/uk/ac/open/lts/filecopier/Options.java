@@ -0,0 +1,224 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.util.*;
+
+/**
+ * Named settings from the .filecopier file. Settings for a mapping are written
+ * on indented lines after the mapping, and fall back to the global settings
+ * (written on lines of their own) if not set.
+ */
+class Options
+{
+	/** Bytes per second for bulk work (folder copies and deletes) */
+	public final static String BULK_BYTES = "bulk-bytes";
+	/** Files per second for bulk work (folder copies and deletes) */
+	public final static String BULK_FILES = "bulk-files";
+	/** Bytes per second for single-file copies */
+	public final static String INTERACTIVE_BYTES = "interactive-bytes";
+	/** Files per second for single-file copies and deletes */
+	public final static String INTERACTIVE_FILES = "interactive-files";
+
+	/** How folders are deleted from the target: "delete" or "trash" */
+	public final static String DELETE_MODE = "delete-mode";
+	public final static String DELETE_MODE_DELETE = "delete";
+	public final static String DELETE_MODE_TRASH = "trash";
+
+	/** How 'wipe and re-copy' replaces the target: "wipe" or "staged" */
+	public final static String RECOPY_MODE = "recopy-mode";
+	public final static String RECOPY_MODE_WIPE = "wipe";
+	public final static String RECOPY_MODE_STAGED = "staged";
+
+	/** Whether to check each file after copying: "true" or "false" */
+	public final static String VERIFY = "verify";
+
+	/** Minutes between background checks of all files, or 0 for none */
+	public final static String AUDIT_INTERVAL = "audit-interval";
+
+	/** How to catch up at startup and after overflow: "scan" or "git" */
+	public final static String CATCH_UP = "catch-up";
+	public final static String CATCH_UP_SCAN = "scan";
+	public final static String CATCH_UP_GIT = "git";
+
+	/** Number of ranges of a large file to copy at once, or 1 for one stream */
+	public final static String PARALLEL_CHUNKS = "parallel-chunks";
+
+	/** Loopback port for the control server (global only), or 0 for none */
+	public final static String CONTROL_PORT = "control-port";
+
+	private final static Set<String> SIZE_OPTIONS = new HashSet<String>(Arrays.asList(
+		new String[] { BULK_BYTES, BULK_FILES, INTERACTIVE_BYTES, INTERACTIVE_FILES,
+		AUDIT_INTERVAL, PARALLEL_CHUNKS }));
+
+	private final static Set<String> PORT_OPTIONS = new HashSet<String>(Arrays.asList(
+		new String[] { CONTROL_PORT }));
+
+	/**
+	 * Settings which must have one of a list of values.
+	 */
+	private final static Map<String, List<String>> CHOICE_OPTIONS =
+		new HashMap<String, List<String>>();
+	static
+	{
+		CHOICE_OPTIONS.put(DELETE_MODE, Arrays.asList(
+			new String[] { DELETE_MODE_DELETE, DELETE_MODE_TRASH }));
+		CHOICE_OPTIONS.put(RECOPY_MODE, Arrays.asList(
+			new String[] { RECOPY_MODE_WIPE, RECOPY_MODE_STAGED }));
+		CHOICE_OPTIONS.put(CATCH_UP, Arrays.asList(
+			new String[] { CATCH_UP_SCAN, CATCH_UP_GIT }));
+		CHOICE_OPTIONS.put(VERIFY, Arrays.asList(new String[] { "true", "false" }));
+	}
+
+	private Options parent;
+	private Map<String, String> values = new HashMap<String, String>();
+
+	/**
+	 * @param parent Options to use if a setting isn't set here, or null
+	 */
+	Options(Options parent)
+	{
+		this.parent = parent;
+	}
+
+	/**
+	 * @param name Setting name (any case)
+	 * @return True if this is the name of a known setting
+	 */
+	static boolean isOption(String name)
+	{
+		name = name.toLowerCase();
+		return SIZE_OPTIONS.contains(name) || PORT_OPTIONS.contains(name)
+			|| CHOICE_OPTIONS.containsKey(name);
+	}
+
+	/**
+	 * Sets a value.
+	 * @param name Setting name (any case)
+	 * @param value Value
+	 * @throws IllegalArgumentException If the value isn't valid for the setting
+	 */
+	void set(String name, String value) throws IllegalArgumentException
+	{
+		name = name.toLowerCase();
+		if(SIZE_OPTIONS.contains(name))
+		{
+			parseSize(value);
+		}
+		if(PORT_OPTIONS.contains(name))
+		{
+			parsePort(value);
+		}
+		if(CHOICE_OPTIONS.containsKey(name))
+		{
+			value = value.toLowerCase();
+			if(!CHOICE_OPTIONS.get(name).contains(value))
+			{
+				throw new IllegalArgumentException(name + " must be one of " + CHOICE_OPTIONS.get(name));
+			}
+		}
+		values.put(name, value);
+	}
+
+	/**
+	 * @param name Setting name
+	 * @return Value set here or in the parent, or null if none
+	 */
+	String get(String name)
+	{
+		String value = values.get(name);
+		if(value == null && parent != null)
+		{
+			return parent.get(name);
+		}
+		return value;
+	}
+
+	/**
+	 * @param name Setting name
+	 * @return Value set here (ignoring the parent), or null if none
+	 */
+	String getOwn(String name)
+	{
+		return values.get(name);
+	}
+
+	/**
+	 * Parses a number with optional k, M, or G suffix (multiples of 1024).
+	 * @param value Value e.g. "100", "512k", "2M"
+	 * @return Number
+	 * @throws IllegalArgumentException If the value isn't a valid size
+	 */
+	static long parseSize(String value) throws IllegalArgumentException
+	{
+		String number = value.trim();
+		long multiplier = 1;
+		if(!number.isEmpty())
+		{
+			switch(Character.toLowerCase(number.charAt(number.length() - 1)))
+			{
+			case 'k' : multiplier = 1024L; break;
+			case 'm' : multiplier = 1024L * 1024; break;
+			case 'g' : multiplier = 1024L * 1024 * 1024; break;
+			}
+			if(multiplier != 1)
+			{
+				number = number.substring(0, number.length() - 1).trim();
+			}
+		}
+		long result;
+		try
+		{
+			result = Long.parseLong(number) * multiplier;
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Not a valid number: " + value);
+		}
+		if(result < 0)
+		{
+			throw new IllegalArgumentException("Must not be negative: " + value);
+		}
+		return result;
+	}
+
+	/**
+	 * Parses a TCP port number (no suffixes).
+	 * @param value Value e.g. "8080"
+	 * @return Port, 0 to 65535
+	 * @throws IllegalArgumentException If the value isn't a valid port
+	 */
+	static int parsePort(String value) throws IllegalArgumentException
+	{
+		int result;
+		try
+		{
+			result = Integer.parseInt(value.trim());
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Not a valid port: " + value);
+		}
+		if(result < 0 || result > 65535)
+		{
+			throw new IllegalArgumentException("Port must be 0 to 65535: " + value);
+		}
+		return result;
+	}
+}
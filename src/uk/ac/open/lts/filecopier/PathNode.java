@@ -0,0 +1,244 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A relative path stored as a node with a parent and a name. Folders that are
+ * watched are kept (interned) in a tree for each watcher, so the paths held by
+ * watch keys and queued actions share their common folders and names instead
+ * of each holding a full path. Checking whether one path is inside another is
+ * a walk up the parent pointers.
+ * <p>
+ * Other nodes (e.g. files in queued actions) are not kept in the tree, but
+ * point to interned parents where possible.
+ * <p>
+ * Each tree has its own lock, so watchers don't hold each other up.
+ */
+final class PathNode
+{
+	/**
+	 * Shared by all nodes of a tree. Guards the tree's children maps.
+	 */
+	private static class Tree
+	{
+		/** File system that paths are on */
+		private final FileSystem fileSystem;
+
+		Tree(FileSystem fileSystem)
+		{
+			this.fileSystem = fileSystem;
+		}
+	}
+
+	private final Tree tree;
+	private final PathNode parent;
+	private final String name;
+	private final int depth;
+	private final boolean interned;
+
+	/** Interned children, or null if none */
+	private Map<String, PathNode> children;
+
+	private PathNode(Tree tree, PathNode parent, String name, boolean interned)
+	{
+		this.tree = tree;
+		this.parent = parent;
+		this.name = name.intern();
+		this.depth = parent == null ? 0 : parent.depth + 1;
+		this.interned = interned;
+	}
+
+	/**
+	 * @param fileSystem File system that paths are on (that of the source folder)
+	 * @return New root node for a tree (an empty relative path)
+	 */
+	static PathNode createRoot(FileSystem fileSystem)
+	{
+		return new PathNode(new Tree(fileSystem), null, "", true);
+	}
+
+	/**
+	 * Gets the interned node for a path below this one, adding it (and any
+	 * parent folders) to the tree if needed. Must be called on an interned node.
+	 * @param relative Relative path; "." segments are ignored
+	 * @return Interned node
+	 */
+	PathNode intern(Path relative)
+	{
+		PathNode node = this;
+		synchronized(tree)
+		{
+			for(Path segment : relative)
+			{
+				String name = segment.toString();
+				if(name.isEmpty() || name.equals("."))
+				{
+					continue;
+				}
+				if(node.children == null)
+				{
+					node.children = new HashMap<String, PathNode>(4);
+				}
+				PathNode child = node.children.get(name);
+				if(child == null)
+				{
+					child = new PathNode(tree, node, name, true);
+					node.children.put(child.name, child);
+				}
+				node = child;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Gets a node for a path below this one, using interned nodes for as much of
+	 * the path as is in the tree. Nothing is added to the tree.
+	 * @param relative Relative path; "." segments are ignored
+	 * @return Node
+	 */
+	PathNode lookup(Path relative)
+	{
+		PathNode node = this;
+		synchronized(tree)
+		{
+			for(Path segment : relative)
+			{
+				String name = segment.toString();
+				if(name.isEmpty() || name.equals("."))
+				{
+					continue;
+				}
+				PathNode child = node.children == null ? null : node.children.get(name);
+				node = child != null ? child : new PathNode(tree, node, name, false);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Removes this node (e.g. a folder that is no longer watched) from the tree.
+	 * Existing references to it, and to nodes below it, still work.
+	 */
+	void release()
+	{
+		if(!interned || parent == null)
+		{
+			return;
+		}
+		synchronized(tree)
+		{
+			if(parent.children != null && parent.children.get(name) == this)
+			{
+				parent.children.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * @return True if this is the root of a tree
+	 */
+	boolean isRoot()
+	{
+		return parent == null;
+	}
+
+	/**
+	 * Checks whether a path is the same as this one or inside it.
+	 * @param inner Other path (from the same tree)
+	 * @return True if inner is this path, or inside it
+	 */
+	boolean contains(PathNode inner)
+	{
+		if(inner.depth < depth)
+		{
+			return false;
+		}
+		while(inner.depth > depth)
+		{
+			inner = inner.parent;
+		}
+		return equals(inner);
+	}
+
+	/**
+	 * @return Relative path (empty path for the root)
+	 */
+	Path toPath()
+	{
+		String[] names = new String[depth];
+		PathNode node = this;
+		for(int i=depth - 1; i>=0; i--)
+		{
+			names[i] = node.name;
+			node = node.parent;
+		}
+		if(depth == 0)
+		{
+			return tree.fileSystem.getPath("");
+		}
+		return tree.fileSystem.getPath(names[0],
+			Arrays.copyOfRange(names, 1, depth));
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(!(obj instanceof PathNode))
+		{
+			return false;
+		}
+		PathNode a = this, b = (PathNode)obj;
+		if(a.depth != b.depth)
+		{
+			return false;
+		}
+		// Interned names can be compared by reference.
+		while(a != b)
+		{
+			if(a.name != b.name)
+			{
+				return false;
+			}
+			a = a.parent;
+			b = b.parent;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = 0;
+		for(PathNode node = this; node != null; node = node.parent)
+		{
+			hash = hash * 31 + node.name.hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return toPath().toString();
+	}
+}
@@ -0,0 +1,366 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies large files so that an interrupted copy can carry on from where it
+ * got to, both when the action queue retries it and after a restart.
+ * <p>
+ * The file is written to a partial file next to the target, which is renamed
+ * once complete. Every so often the partial file is flushed to disk and the
+ * offset is saved in a checkpoint file in the state folder. Before resuming,
+ * the source must be unchanged and the end of the partial file must match
+ * the source; otherwise the copy starts again from the beginning.
+ * <p>
+ * On high-latency shares a single stream can't use all the bandwidth, so a
+ * copy can instead be split into ranges which are written at the same time
+ * into the partial file, at their own positions. This is done in rounds of
+ * one range per thread, so the checkpoint is still a single offset.
+ */
+class ResumableCopy
+{
+	/** Files at least this size are copied resumably */
+	final static long MIN_SIZE = 64L * 1024 * 1024;
+
+	/** Suffix added to the target name for the partial file */
+	final static String PARTIAL_SUFFIX = ".filecopier-part";
+
+	private final static long CHECKPOINT_BYTES = 16L * 1024 * 1024;
+	private final static int VALIDATE_BYTES = 1024 * 1024;
+	private final static int BUFFER_SIZE = 256 * 1024;
+	private final static int FILE_VERSION = 1;
+
+	private final static ExecutorService pool = Executors.newCachedThreadPool(
+		new ThreadFactory()
+		{
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Chunked copy " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	/**
+	 * Copies a file, resuming a previous partial copy if possible. If the copy
+	 * fails, the partial file and checkpoint are kept so that the next attempt
+	 * can carry on; retrying is up to the caller.
+	 * @param source Source file
+	 * @param target Target file (replaced if it exists)
+	 * @param attrs Source attributes (read before copying)
+	 * @param throttle Rate limits
+	 * @param chunks Number of ranges to copy at once, or 1 for a single stream
+	 * @throws IOException If the copy fails, or the source has gone
+	 */
+	static void copy(Path source, Path target, BasicFileAttributes attrs, Throttle throttle,
+		int chunks) throws IOException
+	{
+		Path partial = getPartial(target), checkpoint = getCheckpoint(partial);
+		try
+		{
+			long offset = getResumeOffset(source, partial, checkpoint, attrs);
+			if(chunks > 1)
+			{
+				copyChunks(source, partial, checkpoint, offset, attrs, throttle, chunks);
+			}
+			else
+			{
+				copyFrom(source, partial, checkpoint, offset, attrs, throttle);
+			}
+			Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+			Files.deleteIfExists(checkpoint);
+		}
+		catch(IOException e)
+		{
+			if(!Files.exists(source))
+			{
+				// Source has gone, so there's nothing to resume.
+				discard(target);
+				throw new NoSuchFileException(source.toString());
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes any partial copy of a target file, including one written before
+	 * the first checkpoint.
+	 * @param target Target file
+	 */
+	static void discard(Path target)
+	{
+		Path partial = getPartial(target), checkpoint = getCheckpoint(partial);
+		try
+		{
+			Files.deleteIfExists(partial);
+			Files.deleteIfExists(checkpoint);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param path Path
+	 * @return True if this is a partial file (not a real target file)
+	 */
+	static boolean isPartial(Path path)
+	{
+		return path.getFileName().toString().endsWith(PARTIAL_SUFFIX);
+	}
+
+	private static Path getPartial(Path target)
+	{
+		return target.resolveSibling(target.getFileName() + PARTIAL_SUFFIX);
+	}
+
+	private static Path getCheckpoint(Path partial)
+	{
+		Path folder = Main.getStateFolder().resolve("partial");
+		return folder.resolve(MappingState.getKey(partial) + ".checkpoint");
+	}
+
+	/**
+	 * Works out where to resume a copy.
+	 * @return Offset, or 0 to start again
+	 */
+	private static long getResumeOffset(Path source, Path partial, Path checkpoint,
+		BasicFileAttributes attrs)
+	{
+		long offset;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+			Files.newInputStream(checkpoint))))
+		{
+			if(in.readInt() != FILE_VERSION || !in.readUTF().equals(source.toString())
+				|| in.readLong() != attrs.size()
+				|| in.readLong() != attrs.lastModifiedTime().toMillis())
+			{
+				return 0;
+			}
+			offset = in.readLong();
+		}
+		catch(IOException e)
+		{
+			return 0;
+		}
+
+		// Check that the partial file has the data that was checkpointed.
+		try(FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+			FileChannel partialChannel = FileChannel.open(partial, StandardOpenOption.READ))
+		{
+			if(partialChannel.size() < offset)
+			{
+				return 0;
+			}
+			int length = (int)Math.min(VALIDATE_BYTES, offset);
+			if(!Arrays.equals(read(sourceChannel, offset - length, length),
+				read(partialChannel, offset - length, length)))
+			{
+				return 0;
+			}
+			return offset;
+		}
+		catch(IOException e)
+		{
+			return 0;
+		}
+	}
+
+	private static byte[] read(FileChannel channel, long position, int length)
+		throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position + buffer.position()) == -1)
+			{
+				throw new EOFException();
+			}
+		}
+		return buffer.array();
+	}
+
+	private static void copyFrom(Path source, Path partial, Path checkpoint, long offset,
+		BasicFileAttributes attrs, Throttle throttle) throws IOException
+	{
+		try(FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE))
+		{
+			out.truncate(offset);
+			in.position(offset);
+			out.position(offset);
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long lastCheckpoint = offset;
+			while(true)
+			{
+				buffer.clear();
+				int read = in.read(buffer);
+				if(read == -1)
+				{
+					break;
+				}
+				throttle.acquireBytes(read);
+				buffer.flip();
+				while(buffer.hasRemaining())
+				{
+					out.write(buffer);
+				}
+				offset += read;
+				if(offset - lastCheckpoint >= CHECKPOINT_BYTES)
+				{
+					out.force(false);
+					saveCheckpoint(checkpoint, source, attrs, offset);
+					lastCheckpoint = offset;
+				}
+			}
+			out.force(false);
+		}
+	}
+
+	/**
+	 * Copies the rest of the file in rounds of several ranges at once. The
+	 * partial file is extended to full length first so that ranges can be
+	 * written in any order, and its length is checked at the end.
+	 */
+	private static void copyChunks(final Path source, Path partial, Path checkpoint,
+		long offset, BasicFileAttributes attrs, final Throttle throttle, int chunks)
+		throws IOException
+	{
+		final long size = attrs.size();
+		try(final FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			final FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE))
+		{
+			out.truncate(offset);
+			if(size > offset)
+			{
+				out.write(ByteBuffer.allocate(1), size - 1);
+			}
+			while(offset < size)
+			{
+				List<Future<Void>> futures = new ArrayList<Future<Void>>();
+				for(int i = 0; i < chunks && offset < size; i++)
+				{
+					final long start = offset, end = Math.min(size, offset + CHECKPOINT_BYTES);
+					futures.add(pool.submit(new Callable<Void>()
+					{
+						@Override
+						public Void call() throws IOException
+						{
+							copyRange(in, out, start, end, throttle);
+							return null;
+						}
+					}));
+					offset = end;
+				}
+				IOException error = null;
+				for(Future<Void> future : futures)
+				{
+					try
+					{
+						future.get();
+					}
+					catch(InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						error = new InterruptedIOException();
+					}
+					catch(ExecutionException e)
+					{
+						if(!(e.getCause() instanceof IOException))
+						{
+							throw new Error(e.getCause());
+						}
+						if(error == null)
+						{
+							error = (IOException)e.getCause();
+						}
+					}
+				}
+				if(error != null)
+				{
+					throw error;
+				}
+				out.force(false);
+				saveCheckpoint(checkpoint, source, attrs, offset);
+			}
+			if(out.size() != size)
+			{
+				throw new IOException("Copy has wrong length: " + out.size() + " (expected "
+					+ size + ")");
+			}
+		}
+	}
+
+	/**
+	 * Copies one range using positional reads and writes, so several ranges
+	 * can share the same channels.
+	 */
+	private static void copyRange(FileChannel in, FileChannel out, long start, long end,
+		Throttle throttle) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = start;
+		while(position < end)
+		{
+			buffer.clear();
+			buffer.limit((int)Math.min(BUFFER_SIZE, end - position));
+			int read = in.read(buffer, position);
+			if(read == -1)
+			{
+				throw new EOFException();
+			}
+			throttle.acquireBytes(read);
+			buffer.flip();
+			while(buffer.hasRemaining())
+			{
+				position += out.write(buffer, position);
+			}
+		}
+	}
+
+	private static void saveCheckpoint(Path checkpoint, Path source,
+		BasicFileAttributes attrs, long offset) throws IOException
+	{
+		Files.createDirectories(checkpoint.getParent());
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			Files.newOutputStream(checkpoint))))
+		{
+			out.writeInt(FILE_VERSION);
+			out.writeUTF(source.toString());
+			out.writeLong(attrs.size());
+			out.writeLong(attrs.lastModifiedTime().toMillis());
+			out.writeLong(offset);
+		}
+	}
+}
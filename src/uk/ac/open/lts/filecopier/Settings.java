@@ -0,0 +1,198 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Contents of the .filecopier settings file.
+ */
+class Settings
+{
+	/**
+	 * Settings lines must be of the form "c:\source => c:\target".
+	 */
+	private final static Pattern SETTINGS_REGEX = Pattern.compile(
+		"^(.*[^ ]) ?=> ?([^ ].*)$");
+
+	private boolean debug;
+	private Options options = new Options(null);
+	private List<Mapping> mappings = new ArrayList<Mapping>();
+	private List<Problem> problems = new ArrayList<Problem>();
+
+	/**
+	 * A "source => target" line together with its settings.
+	 */
+	static class Mapping
+	{
+		private int index;
+		private String source, target;
+		private Options options;
+
+		private Mapping(int index, String source, String target, Options parent)
+		{
+			this.index = index;
+			this.source = source;
+			this.target = target;
+			options = new Options(parent);
+		}
+
+		/**
+		 * @return Line number in settings file
+		 */
+		public int getIndex()
+		{
+			return index;
+		}
+
+		public String getSource()
+		{
+			return source;
+		}
+
+		public String getTarget()
+		{
+			return target;
+		}
+
+		public Options getOptions()
+		{
+			return options;
+		}
+	}
+
+	/**
+	 * An error in the settings file.
+	 */
+	static class Problem
+	{
+		private String message, detail;
+
+		private Problem(String message, String detail)
+		{
+			this.message = message;
+			this.detail = detail;
+		}
+
+		public String getMessage()
+		{
+			return message;
+		}
+
+		public String getDetail()
+		{
+			return detail;
+		}
+	}
+
+	/**
+	 * Reads settings. Lines that can't be understood are recorded as problems.
+	 * @param reader Reader
+	 * @throws IOException Any error reading
+	 */
+	Settings(BufferedReader reader) throws IOException
+	{
+		Mapping last = null;
+		for(int index=1;; index++)
+		{
+			String line = reader.readLine();
+			if(line == null)
+			{
+				break;
+			}
+			// Ignore blank lines or those that begin with #
+			if(line.trim().equals("") || line.startsWith("#"))
+			{
+				continue;
+			}
+			Matcher m = SETTINGS_REGEX.matcher(line);
+			if (!m.matches())
+			{
+				problems.add(new Problem(
+					"Settings line does not match pattern (c:\\source => c:\\target): ", "" + index));
+				continue;
+			}
+			String sourceText = m.group(1).trim(), targetText = m.group(2).trim();
+			if (sourceText.toLowerCase().equals("debug"))
+			{
+				debug = true;
+				continue;
+			}
+			if(Options.isOption(sourceText))
+			{
+				// Indented settings apply to the previous mapping.
+				Options target = options;
+				if(Character.isWhitespace(line.charAt(0)))
+				{
+					if(last == null)
+					{
+						problems.add(new Problem("Indented setting does not follow a folder: ", "" + index));
+						continue;
+					}
+					target = last.options;
+				}
+				try
+				{
+					target.set(sourceText, targetText);
+				}
+				catch(IllegalArgumentException e)
+				{
+					problems.add(new Problem("Invalid setting on line " + index + ": ", e.getMessage()));
+				}
+				continue;
+			}
+			last = new Mapping(index, sourceText, targetText, options);
+			mappings.add(last);
+		}
+	}
+
+	/**
+	 * @return True if debug mode is turned on
+	 */
+	public boolean isDebug()
+	{
+		return debug;
+	}
+
+	/**
+	 * @return Global options
+	 */
+	public Options getOptions()
+	{
+		return options;
+	}
+
+	/**
+	 * @return Mappings in file order
+	 */
+	public List<Mapping> getMappings()
+	{
+		return mappings;
+	}
+
+	/**
+	 * @return Problems found when reading the file
+	 */
+	public List<Problem> getProblems()
+	{
+		return problems;
+	}
+}
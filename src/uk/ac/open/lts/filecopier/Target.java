@@ -0,0 +1,237 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.nio.file.Path;
+
+/**
+ * One target folder of a watcher. Each target has its own settings, rate
+ * limits and trash, so a watcher can copy to several targets.
+ */
+class Target
+{
+	/** Limit on parallel-chunks, so a typo can't start hundreds of threads */
+	private final static int MAX_PARALLEL_CHUNKS = 32;
+
+	private Path path;
+	private String label;
+	private Throttle bulkThrottle, interactiveThrottle;
+	private Trash trash;
+	private boolean verify;
+	private long auditInterval;
+	private int parallelChunks;
+	private boolean gitCatchUp, stagedRecopy;
+	private Trash cleaner;
+	private TargetCache cache = new TargetCache();
+
+	/**
+	 * @param main Main
+	 * @param path Target folder
+	 * @param options Settings for this target
+	 */
+	Target(Watcher.Owner main, Path path, Options options)
+	{
+		this.path = path;
+		bulkThrottle = Throttle.create(options, Options.BULK_BYTES, Options.BULK_FILES,
+			main.getBulkThrottle());
+		interactiveThrottle = Throttle.create(options, Options.INTERACTIVE_BYTES,
+			Options.INTERACTIVE_FILES, main.getInteractiveThrottle());
+		if(Options.DELETE_MODE_TRASH.equals(options.get(Options.DELETE_MODE)))
+		{
+			trash = Trash.get(main, path, bulkThrottle);
+		}
+		verify = "true".equals(options.get(Options.VERIFY));
+		String audit = options.get(Options.AUDIT_INTERVAL);
+		auditInterval = audit == null ? 0 : Options.parseSize(audit) * 60000;
+		gitCatchUp = Options.CATCH_UP_GIT.equals(options.get(Options.CATCH_UP));
+		stagedRecopy = Options.RECOPY_MODE_STAGED.equals(options.get(Options.RECOPY_MODE))
+			&& path.getFileName() != null;
+		cleaner = trash != null ? trash : Trash.get(main, path, bulkThrottle);
+		String chunks = options.get(Options.PARALLEL_CHUNKS);
+		parallelChunks = chunks == null ? 1
+			: (int)Math.min(MAX_PARALLEL_CHUNKS, Math.max(1, Options.parseSize(chunks)));
+	}
+
+	/**
+	 * Creates a target for building a new copy of this one in its staging
+	 * folder. It shares this target's label and rate limits.
+	 * @param original Target
+	 */
+	private Target(Target original)
+	{
+		path = original.getStagingFolder();
+		label = original.label;
+		bulkThrottle = original.bulkThrottle;
+		interactiveThrottle = original.interactiveThrottle;
+		parallelChunks = original.parallelChunks;
+		cleaner = original.cleaner;
+	}
+
+	/**
+	 * Gets a string which changes if any setting used by a target changes.
+	 * @param path Target folder
+	 * @param options Settings for this target
+	 * @return Signature
+	 */
+	static String getSignature(Path path, Options options)
+	{
+		// Rate limits only use this target's own settings; the global limits
+		// are parent throttles.
+		return path + "|" + options.getOwn(Options.BULK_BYTES)
+			+ "|" + options.getOwn(Options.BULK_FILES)
+			+ "|" + options.getOwn(Options.INTERACTIVE_BYTES)
+			+ "|" + options.getOwn(Options.INTERACTIVE_FILES)
+			+ "|" + options.get(Options.DELETE_MODE)
+			+ "|" + options.get(Options.VERIFY)
+			+ "|" + options.get(Options.AUDIT_INTERVAL)
+			+ "|" + options.get(Options.PARALLEL_CHUNKS)
+			+ "|" + options.get(Options.CATCH_UP)
+			+ "|" + options.get(Options.RECOPY_MODE);
+	}
+
+	/**
+	 * @return Target folder
+	 */
+	public Path getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * @return Short label shown in output (e.g. "a"), or null if this is the
+	 *   only target of its watcher
+	 */
+	public String getLabel()
+	{
+		return label;
+	}
+
+	void setLabel(String label)
+	{
+		this.label = label;
+	}
+
+	/**
+	 * @param bulk True for bulk work (folders), false for single files
+	 * @return Rate limits
+	 */
+	public Throttle getThrottle(boolean bulk)
+	{
+		return bulk ? bulkThrottle : interactiveThrottle;
+	}
+
+	/**
+	 * @return Trash, or null if not using trash mode
+	 */
+	public Trash getTrash()
+	{
+		return trash;
+	}
+
+	/**
+	 * @return Trash folder, or null if not using trash mode
+	 */
+	public Path getTrashFolder()
+	{
+		return trash == null ? null : trash.getFolder();
+	}
+
+	/**
+	 * @return True if files should be checked after copying
+	 */
+	public boolean isVerify()
+	{
+		return verify;
+	}
+
+	/**
+	 * @return Time between audits in ms, or 0 for none
+	 */
+	public long getAuditInterval()
+	{
+		return auditInterval;
+	}
+
+	/**
+	 * @return True if checks should use the source's git index where possible
+	 */
+	public boolean isGitCatchUp()
+	{
+		return gitCatchUp;
+	}
+
+	/**
+	 * @return True if a whole-folder recopy should be built in the staging
+	 *   folder and swapped into place
+	 */
+	public boolean isStagedRecopy()
+	{
+		return stagedRecopy;
+	}
+
+	/**
+	 * @return Folder next to the target where a new copy is built
+	 */
+	public Path getStagingFolder()
+	{
+		return path.resolveSibling(path.getFileName() + ".filecopier-staging");
+	}
+
+	/**
+	 * @return Target for building a new copy in the staging folder
+	 */
+	public Target createStaging()
+	{
+		return new Target(this);
+	}
+
+	/**
+	 * @return Trash used to delete folders in the background (the real trash
+	 *   in trash mode)
+	 */
+	public Trash getCleaner()
+	{
+		return cleaner;
+	}
+
+	/**
+	 * Stops using the target's trash, once nothing else will be done to the
+	 * target. Not for staging targets, which share the real target's trash.
+	 */
+	void release()
+	{
+		cleaner.release();
+	}
+
+	/**
+	 * @return Number of ranges of a large file to copy at once (1 or more)
+	 */
+	public int getParallelChunks()
+	{
+		return parallelChunks;
+	}
+
+	/**
+	 * @return Cache of what filecopier has written to this target
+	 */
+	public TargetCache getCache()
+	{
+		return cache;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Remembers what filecopier has itself written to one target, so that common
+ * operations don't need to check the target first. Each check is a round trip
+ * if the target is on a network drive.
+ * <p>
+ * Anything not known returns null, and callers should check the target as
+ * normal. Nothing else is expected to change the target; if it does, the
+ * cache is cleared after errors, repairs and checks.
+ * <p>
+ * Thread-safe.
+ */
+class TargetCache
+{
+	/** Limit on entries; cache is cleared if it gets bigger */
+	private final static int MAX_ENTRIES = 100000;
+
+	private final static Path ROOT = Paths.get("");
+
+	enum State { FILE, FOLDER, ABSENT }
+
+	private Map<Path, State> entries = new HashMap<Path, State>();
+
+	/**
+	 * @param relative Relative path within target
+	 * @return Last known state, or null if not known
+	 */
+	synchronized State get(Path relative)
+	{
+		return entries.get(key(relative));
+	}
+
+	/**
+	 * Records that filecopier wrote a file.
+	 * @param relative Relative path within target
+	 */
+	synchronized void file(Path relative)
+	{
+		Path key = key(relative);
+		put(key, State.FILE);
+		folder(key.getParent());
+	}
+
+	/**
+	 * Records that a folder exists, along with all its parents.
+	 * @param relative Relative path within target (may be null for the root)
+	 */
+	synchronized void folder(Path relative)
+	{
+		for(Path key = key(relative); key != null; key = key.getParent())
+		{
+			if(entries.get(key) == State.FOLDER)
+			{
+				return;
+			}
+			put(key, State.FOLDER);
+		}
+		put(ROOT, State.FOLDER);
+	}
+
+	/**
+	 * Records that filecopier deleted a path and everything inside it.
+	 * @param relative Relative path within target
+	 */
+	synchronized void removed(Path relative)
+	{
+		Path key = key(relative);
+		if(key.equals(ROOT))
+		{
+			// Root folder is emptied, not deleted
+			entries.clear();
+			put(key, State.FOLDER);
+			return;
+		}
+		if(entries.get(key) != State.FILE)
+		{
+			removeInside(key);
+		}
+		put(key, State.ABSENT);
+	}
+
+	/**
+	 * Forgets everything, e.g. after an error or an outside change.
+	 */
+	synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	private void removeInside(Path key)
+	{
+		for(Iterator<Path> i = entries.keySet().iterator(); i.hasNext();)
+		{
+			Path entry = i.next();
+			if(entry.startsWith(key) && !entry.equals(key))
+			{
+				i.remove();
+			}
+		}
+	}
+
+	private void put(Path key, State state)
+	{
+		if(entries.size() >= MAX_ENTRIES)
+		{
+			entries.clear();
+		}
+		entries.put(key, state);
+	}
+
+	private static Path key(Path relative)
+	{
+		if(relative == null)
+		{
+			return ROOT;
+		}
+		return relative.normalize();
+	}
+}
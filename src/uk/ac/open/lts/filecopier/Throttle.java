@@ -0,0 +1,167 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+/**
+ * Limits the rate of file operations and bytes transferred, using token
+ * buckets. A throttle may have a parent (e.g. the global limits for all
+ * mappings) which also has to allow the operation.
+ */
+class Throttle
+{
+	private volatile TokenBucket bytes, files;
+	private Throttle parent;
+
+	/**
+	 * @param bytes Bytes per second, or 0 for no limit
+	 * @param files File operations per second, or 0 for no limit
+	 * @param parent Parent throttle, or null
+	 */
+	Throttle(long bytes, long files, Throttle parent)
+	{
+		setLimits(bytes, files);
+		this.parent = parent;
+	}
+
+	/**
+	 * Changes the limits. Operations already waiting are not affected.
+	 * @param bytes Bytes per second, or 0 for no limit
+	 * @param files File operations per second, or 0 for no limit
+	 */
+	void setLimits(long bytes, long files)
+	{
+		this.bytes = bytes > 0 ? new TokenBucket(bytes) : null;
+		this.files = files > 0 ? new TokenBucket(files) : null;
+	}
+
+	/**
+	 * Creates a throttle from settings (not including settings inherited from
+	 * the parent Options).
+	 * @param options Options
+	 * @param bytesName Name of bytes per second setting
+	 * @param filesName Name of files per second setting
+	 * @param parent Parent throttle, or null
+	 * @return New throttle
+	 */
+	static Throttle create(Options options, String bytesName, String filesName,
+		Throttle parent)
+	{
+		Throttle throttle = new Throttle(0, 0, parent);
+		throttle.update(options, bytesName, filesName);
+		return throttle;
+	}
+
+	/**
+	 * Changes the limits to match settings (not including settings inherited
+	 * from the parent Options).
+	 * @param options Options
+	 * @param bytesName Name of bytes per second setting
+	 * @param filesName Name of files per second setting
+	 */
+	void update(Options options, String bytesName, String filesName)
+	{
+		String bytes = options.getOwn(bytesName), files = options.getOwn(filesName);
+		setLimits(bytes == null ? 0 : Options.parseSize(bytes),
+			files == null ? 0 : Options.parseSize(files));
+	}
+
+	/**
+	 * @return True if there is a bytes-per-second limit here or in a parent
+	 */
+	boolean limitsBytes()
+	{
+		return bytes != null || (parent != null && parent.limitsBytes());
+	}
+
+	/**
+	 * Waits until a file operation is allowed.
+	 */
+	void acquireFile()
+	{
+		TokenBucket files = this.files;
+		if(files != null)
+		{
+			files.acquire(1);
+		}
+		if(parent != null)
+		{
+			parent.acquireFile();
+		}
+	}
+
+	/**
+	 * Waits until the given number of bytes may be transferred.
+	 * @param count Number of bytes
+	 */
+	void acquireBytes(long count)
+	{
+		TokenBucket bytes = this.bytes;
+		if(bytes != null)
+		{
+			bytes.acquire(count);
+		}
+		if(parent != null)
+		{
+			parent.acquireBytes(count);
+		}
+	}
+
+	/**
+	 * Token bucket which holds up to one second's worth of tokens. Requests are
+	 * always granted but may take the bucket into debt, in which case the caller
+	 * sleeps until the debt would be paid off. This keeps the lock short.
+	 */
+	private static class TokenBucket
+	{
+		private long rate;
+		private double tokens;
+		private long last;
+
+		TokenBucket(long rate)
+		{
+			this.rate = rate;
+			tokens = rate;
+			last = System.nanoTime();
+		}
+
+		void acquire(long count)
+		{
+			long wait;
+			synchronized(this)
+			{
+				long now = System.nanoTime();
+				tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+				last = now;
+				tokens -= count;
+				wait = tokens < 0 ? (long)(-tokens * 1000 / rate) : 0;
+			}
+			if(wait > 0)
+			{
+				try
+				{
+					Thread.sleep(wait);
+				}
+				catch(InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
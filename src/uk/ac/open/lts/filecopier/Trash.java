@@ -0,0 +1,312 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trash folder inside a target folder. Folders that need deleting are renamed
+ * into the trash in a single operation, then deleted by a background thread,
+ * so that copying can start straight away.
+ * <p>
+ * There is one trash for each target folder, shared by all targets that use
+ * that folder (for example the old and new watcher when settings are
+ * reloaded), so that only one thread empties it.
+ */
+class Trash
+{
+	/**
+	 * Name of trash folder within the target folder.
+	 */
+	final static String FOLDER_NAME = ".filecopier-trash";
+
+	/** Trash for each trash folder in use; synchronize on this to use it */
+	private final static Map<Path, Trash> shared = new HashMap<Path, Trash>();
+
+	private Watcher.Owner main;
+	private Path folder;
+	private Throttle throttle;
+	private BlockingQueue<Path> pending = new LinkedBlockingQueue<Path>();
+	private AtomicInteger counter = new AtomicInteger();
+	private Thread thread;
+	private boolean stopped;
+
+	/** Number of targets using this trash; synchronize on {@link #shared} */
+	private int users;
+
+	/**
+	 * @param main Main (used to display errors)
+	 * @param target Target folder
+	 * @param throttle Rate limits for deleting
+	 */
+	private Trash(Watcher.Owner main, Path target, Throttle throttle)
+	{
+		this.main = main;
+		this.folder = target.resolve(FOLDER_NAME);
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Gets the trash for a target folder, creating it if no other target is
+	 * using it. Call {@link #release()} when finished with it.
+	 * @param main Main (used to display errors)
+	 * @param target Target folder
+	 * @param throttle Rate limits for deleting (if the trash is new)
+	 * @return Trash
+	 */
+	static Trash get(Watcher.Owner main, Path target, Throttle throttle)
+	{
+		synchronized(shared)
+		{
+			Path key = target.resolve(FOLDER_NAME).toAbsolutePath().normalize();
+			Trash trash = shared.get(key);
+			if(trash == null)
+			{
+				trash = new Trash(main, target, throttle);
+				shared.put(key, trash);
+			}
+			trash.users++;
+			return trash;
+		}
+	}
+
+	/**
+	 * Stops using the trash. Once no target uses it, its thread is stopped.
+	 */
+	void release()
+	{
+		synchronized(shared)
+		{
+			if(--users > 0)
+			{
+				return;
+			}
+			shared.remove(folder.toAbsolutePath().normalize());
+		}
+		stop();
+	}
+
+	/**
+	 * @return Trash folder
+	 */
+	public Path getFolder()
+	{
+		return folder;
+	}
+
+	/**
+	 * Starts the background thread, including deleting anything left in the
+	 * trash from last time.
+	 */
+	public synchronized void start()
+	{
+		if(thread != null || stopped)
+		{
+			return;
+		}
+		if(Files.isDirectory(folder))
+		{
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder))
+			{
+				for(Path leftover : stream)
+				{
+					pending.add(leftover);
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		thread = new Thread("Trash " + folder)
+		{
+			@Override
+			public void run()
+			{
+				while(true)
+				{
+					try
+					{
+						empty(pending.take());
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the background thread, waiting for it to finish the current
+	 * item. Anything not yet deleted is left in the trash for next time.
+	 */
+	public void stop()
+	{
+		Thread running;
+		synchronized(this)
+		{
+			stopped = true;
+			running = thread;
+			thread = null;
+		}
+		if(running == null)
+		{
+			return;
+		}
+		running.interrupt();
+		try
+		{
+			running.join();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Renames a folder into the trash. The rename must happen in one go, so
+	 * this fails if the trash is on a different volume.
+	 * @param path Folder to get rid of
+	 * @return True if it was moved; false if it still needs deleting
+	 */
+	public boolean moveToTrash(Path path)
+	{
+		start();
+		Path trashed = folder.resolve(System.currentTimeMillis() + "-" + counter.incrementAndGet());
+		try
+		{
+			throttle.acquireFile();
+			Files.createDirectories(folder);
+			Files.move(path, trashed, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		pending.add(trashed);
+		return true;
+	}
+
+	/**
+	 * Deletes a folder in the background, in the same way as things in the
+	 * trash. For folders that have already been moved out of the way.
+	 * @param path Folder to delete
+	 */
+	public void delete(Path path)
+	{
+		start();
+		pending.add(path);
+	}
+
+	/**
+	 * Renames everything inside a folder (except the trash itself) into the
+	 * trash.
+	 * @param dir Folder to empty
+	 * @return True if everything was moved; false if anything still needs deleting
+	 */
+	public boolean moveContentsToTrash(Path dir)
+	{
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+		{
+			for(Path child : stream)
+			{
+				if(child.equals(folder))
+				{
+					continue;
+				}
+				if(!moveToTrash(child))
+				{
+					return false;
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes something in the trash. Called on the trash thread.
+	 * @param trashed File or folder
+	 */
+	private void empty(Path trashed)
+	{
+		try
+		{
+			Files.walkFileTree(trashed, new SimpleFileVisitor<Path>()
+			{
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+					throws IOException
+				{
+					if(Thread.currentThread().isInterrupted())
+					{
+						return FileVisitResult.TERMINATE;
+					}
+					throttle.acquireFile();
+					Files.deleteIfExists(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+					throws IOException
+				{
+					// Already gone, e.g. an old copy that was queued twice.
+					if(e instanceof NoSuchFileException)
+					{
+						return FileVisitResult.CONTINUE;
+					}
+					throw e;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e)
+					throws IOException
+				{
+					if(e != null && !(e instanceof NoSuchFileException))
+					{
+						throw e;
+					}
+					throttle.acquireFile();
+					Files.deleteIfExists(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			main.addError("Error emptying trash: ", trashed.toString());
+			main.markError();
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*
+This file is part of filecopier.
+
+filecopier is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+filecopier is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with filecopier. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2013 The Open University
+*/
+package uk.ac.open.lts.filecopier;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that target files have the same contents as source files, by hashing
+ * both on a pool of threads (one per processor). Mismatches are shown and a
+ * copy is queued to repair them.
+ * <p>
+ * Also runs periodic audits, which check every file in a target.
+ */
+class Verifier
+{
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Files changed less than this many ms ago are left out of audits, as they
+	 * are probably still in the queue.
+	 */
+	private final static long AUDIT_SETTLE_TIME = 10000;
+
+	private final static int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private ExecutorService pool = Executors.newFixedThreadPool(THREADS,
+		new DaemonThreadFactory("Verify"));
+	private ScheduledExecutorService auditTimer = Executors.newSingleThreadScheduledExecutor(
+		new DaemonThreadFactory("Audit"));
+
+	/**
+	 * Checks a file in the background.
+	 * @param watcher Watcher
+	 * @param target Target to check
+	 * @param relative Relative path of file
+	 * @param throttle Rate limits for reading files
+	 * @param ticket Held queue ticket for any repair to share; released
+	 *   when the check is finished
+	 */
+	public void verify(final Watcher watcher, Target target, Path relative,
+		Throttle throttle, final long ticket)
+	{
+		verify(watcher, target, relative, throttle, ticket, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				watcher.releaseTicket(ticket);
+			}
+		});
+	}
+
+	/**
+	 * Checks a file in the background. The source and target are hashed at the
+	 * same time on different threads.
+	 * @param watcher Watcher
+	 * @param mappingTarget Target to check
+	 * @param relative Relative path of file
+	 * @param throttle Rate limits for reading files
+	 * @param ticket Held queue ticket for any repair to share, or 0
+	 * @param done Run when finished, or null
+	 */
+	private void verify(final Watcher watcher, final Target mappingTarget,
+		final Path relative, final Throttle throttle, final long ticket, final Runnable done)
+	{
+		final Path source = watcher.getSource().resolve(relative),
+			target = mappingTarget.getPath().resolve(relative);
+		final byte[][] hashes = new byte[2][];
+		final AtomicInteger remaining = new AtomicInteger(2);
+		final FileTime before;
+		try
+		{
+			before = Files.getLastModifiedTime(source);
+		}
+		catch(IOException e)
+		{
+			// Source has gone, so there's nothing to check.
+			if(done != null)
+			{
+				done.run();
+			}
+			return;
+		}
+		for(int i=0; i<2; i++)
+		{
+			final int index = i;
+			pool.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						hashes[index] = hash(index == 0 ? source : target, throttle);
+					}
+					catch(IOException e)
+					{
+						// Leave hash as null.
+					}
+					if(remaining.decrementAndGet() == 0)
+					{
+						compare(watcher, mappingTarget, relative, source, before,
+							hashes[0], hashes[1], ticket);
+						if(done != null)
+						{
+							done.run();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void compare(Watcher watcher, Target target, Path relative, Path source,
+		FileTime before, byte[] sourceHash, byte[] targetHash, long ticket)
+	{
+		if(sourceHash == null || Arrays.equals(sourceHash, targetHash))
+		{
+			return;
+		}
+		try
+		{
+			if(!Files.getLastModifiedTime(source).equals(before))
+			{
+				// Source changed while checking; there will be another event for it.
+				return;
+			}
+		}
+		catch(IOException e)
+		{
+			return;
+		}
+		watcher.repair(target, relative, targetHash == null ? "MISSING" : "MISMATCH",
+			ticket);
+	}
+
+	/**
+	 * Checks every file in a target, at intervals, starting after one interval.
+	 * @param watcher Watcher
+	 * @param target Target to check
+	 * @param interval Interval in ms
+	 * @param throttle Rate limits for reading files
+	 * @return Future which can be cancelled to stop audits
+	 */
+	public ScheduledFuture<?> scheduleAudit(final Watcher watcher, final Target target,
+		long interval, final Throttle throttle)
+	{
+		return auditTimer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					audit(watcher, target, throttle);
+				}
+				catch(Throwable t)
+				{
+					// Don't let an error stop future audits.
+					t.printStackTrace();
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Checks every file in a target. Called on the audit thread.
+	 * @param watcher Watcher
+	 * @param mappingTarget Target to check
+	 * @param throttle Rate limits for reading files
+	 * @throws IOException Error walking the source folder
+	 * @throws InterruptedException If interrupted
+	 */
+	private void audit(final Watcher watcher, final Target mappingTarget,
+		final Throttle throttle) throws IOException, InterruptedException
+	{
+		// Limit number of files in progress so the pool queue doesn't get huge.
+		final Semaphore inProgress = new Semaphore(THREADS * 2);
+		final Runnable release = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				inProgress.release();
+			}
+		};
+		final Path source = watcher.getSource(), target = mappingTarget.getPath();
+		final long settled = System.currentTimeMillis() - AUDIT_SETTLE_TIME;
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+				throws IOException
+			{
+				if(Main.shouldSkipPath(source.relativize(dir)))
+				{
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				throws IOException
+			{
+				if(!attrs.isRegularFile() || attrs.lastModifiedTime().toMillis() > settled)
+				{
+					return FileVisitResult.CONTINUE;
+				}
+				Path relative = source.relativize(file);
+
+				// Quick check on size before hashing.
+				BasicFileAttributes targetAttrs;
+				try
+				{
+					throttle.acquireFile();
+					targetAttrs = Files.readAttributes(target.resolve(relative),
+						BasicFileAttributes.class);
+				}
+				catch(NoSuchFileException e)
+				{
+					watcher.repair(mappingTarget, relative, "MISSING", 0);
+					return FileVisitResult.CONTINUE;
+				}
+				if(targetAttrs.size() != attrs.size())
+				{
+					watcher.repair(mappingTarget, relative, "MISMATCH", 0);
+					return FileVisitResult.CONTINUE;
+				}
+
+				inProgress.acquireUninterruptibly();
+				verify(watcher, mappingTarget, relative, throttle, 0, release);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+				throws IOException
+			{
+				// Files may be deleted during the audit.
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		inProgress.acquire(THREADS * 2);
+		inProgress.release(THREADS * 2);
+	}
+
+	/**
+	 * Hashes a file.
+	 * @param file File
+	 * @param throttle Rate limits for reading
+	 * @return Hash
+	 * @throws IOException Any error reading the file
+	 */
+	static byte[] hash(Path file, Throttle throttle) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new Error(e);
+		}
+		throttle.acquireFile();
+		try(InputStream in = Files.newInputStream(file))
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(true)
+			{
+				int read = in.read(buffer);
+				if(read == -1)
+				{
+					break;
+				}
+				throttle.acquireBytes(read);
+				digest.update(buffer, 0, read);
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Creates named daemon threads so that the pools don't stop the app exiting.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		private String name;
+		private AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -23,36 +23,166 @@ import java.nio.file.*;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Thread watches one folder.
+ * Thread watches one folder, copying changes to one or more targets.
  */
-class Watcher extends Thread
+class Watcher extends Thread implements ActionQueue.Client
 {
-	private boolean debug = false;
-	private static Writer debugWriter;
-	
-	private static final int MAX_COPY_RETRIES = 3;
+	private volatile boolean debug = false;
 
-	private Main main;
-	private Path source, target;
+	/**
+	 * Buffer size used when copying files with a bytes-per-second limit.
+	 */
+	private static final int THROTTLED_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Folder copies stop after this many ms so that other actions can run, then
+	 * carry on from where they left off.
+	 */
+	static final long COPY_CHUNK_TIME = 500;
+
+	/** Added to a target's name for the old copy after a staged recopy */
+	private static final String OLD_SUFFIX = ".filecopier-old-";
+
+	/**
+	 * Editor temporary files are held back for this many ms. Editors that save
+	 * by writing a temp file and renaming it normally delete the temp file
+	 * well within this time, in which case it is never copied.
+	 */
+	private static final long EDITOR_TEMP_HOLD = 500;
+
+	/**
+	 * Vim checks it can write to a folder by creating this file, or if that
+	 * exists, one numbered this plus a multiple of 123.
+	 */
+	private static final int VIM_TEST_FILE = 4913;
+
+	private Owner main;
+	private Path source;
+	private List<Target> targets;
 	private String style;
 	private int num;
 	private int folderCount;
 	private boolean isWindows;
-	private Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>(1024);
+	private PathNode paths;
+	private Map<WatchKey, PathNode> keys = new HashMap<WatchKey, PathNode>(1024);
+	private MappingState state;
+	private volatile boolean stopping;
+	private volatile WatchService service;
+	private List<ScheduledFuture<?>> audits = new ArrayList<ScheduledFuture<?>>();
+	private Map<PathNode, Long> held = new HashMap<PathNode, Long>();
+	private List<CopyCheckpoint> resuming = new ArrayList<CopyCheckpoint>();
+
+	/**
+	 * Set after an overflow, so that the next check scans the source instead
+	 * of using the git index, which doesn't show unstaged or untracked changes
+	 */
+	private volatile boolean scanAfterOverflow;
 
-	Watcher(Main main, Path source, Path target, String style, int num, boolean debug)
+	/**
+	 * What watchers need from the application (normally {@link Main}): the
+	 * output pane, the shared queue and verifier, and global limits.
+	 */
+	interface Owner
+	{
+		/**
+		 * Adds text to the output.
+		 * @param text Text
+		 */
+		public void addText(String text);
+
+		/**
+		 * Adds text to the output.
+		 * @param text Text
+		 * @param style Style name
+		 */
+		public void addText(String text, String style);
+
+		/**
+		 * Adds an error line to the output.
+		 * @param start Description of error
+		 * @param text Detail (shown in error style) or null
+		 */
+		public void addError(String start, String text);
+
+		/**
+		 * Shows that an error has occurred.
+		 */
+		public void markError();
+
+		/**
+		 * @return Action queue
+		 */
+		public ActionQueue getQueue();
+
+		/**
+		 * @return Verifier used to check copied files
+		 */
+		public Verifier getVerifier();
+
+		/**
+		 * @return Synch object used to prevent multiple folder searches at once
+		 */
+		public Object getStartupSynch();
+
+		/**
+		 * Called when a watcher has finished starting up.
+		 * @param watcher Watcher
+		 */
+		public void startupFinished(Watcher watcher);
+
+		/**
+		 * @return Limits for bulk work across all mappings
+		 */
+		public Throttle getBulkThrottle();
+
+		/**
+		 * @return Limits for single-file work across all mappings
+		 */
+		public Throttle getInteractiveThrottle();
+	}
+
+	/**
+	 * Call {@link #start()} to start watching.
+	 * @param main Main
+	 * @param source Source folder
+	 * @param targets Target folders (if more than one, each is labelled a, b, ...)
+	 * @param style Display style
+	 * @param num Number shown in output
+	 * @param debug True to show extra detail about errors
+	 */
+	Watcher(Owner main, Path source, List<Target> targets, String style, int num,
+		boolean debug)
 	{
 		super("Watch thread " + num);
 		this.main = main;
 		this.source = source;
-		this.target = target;
+		paths = PathNode.createRoot(source.getFileSystem());
+		this.targets = targets;
 		this.style = style;
 		this.num = num;
 		this.debug = debug;
+		List<Path> targetPaths = new ArrayList<Path>();
+		for(int i=0; i<targets.size(); i++)
+		{
+			if(targets.size() > 1)
+			{
+				targets.get(i).setLabel(String.valueOf((char)('a' + i)));
+			}
+			targetPaths.add(targets.get(i).getPath());
+		}
+		state = new MappingState(source, targetPaths);
+	}
 
-		start();
+	/**
+	 * @param debug True to show extra detail about errors
+	 */
+	void setDebug(boolean debug)
+	{
+		this.debug = debug;
 	}
 
 	private void addIdent()
@@ -60,37 +190,35 @@ class Watcher extends Thread
 		main.addText(num + " ", style);
 	}
 
+	@Override
+	public int getNum()
+	{
+		return num;
+	}
+
 	public Path getSource()
 	{
 		return source;
 	}
 
-	public Path getTarget()
+	@Override
+	public PathNode getPaths()
 	{
-		return target;
+		return paths;
 	}
 
-	private void debugLog(Path relative, Kind<?> kind)
+	public List<Target> getTargets()
 	{
-		if(!debug)
-		{
-			return;
-		}
+		return targets;
+	}
 
-		try
-		{
-			if(debugWriter == null)
-			{
-				debugWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
-					new File(System.getProperty("user.home"), "filecopier.debug.log")), "UTF-8"));
-			}
-			debugWriter.write("[EVENT] " + kind + ": " + relative + "\n");
-			debugWriter.flush();
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-		}
+	/**
+	 * @param only Single target, or null
+	 * @return List containing only that target, or all targets if null
+	 */
+	private List<Target> selectTargets(Target only)
+	{
+		return only == null ? targets : Collections.singletonList(only);
 	}
 
 	@Override
@@ -101,13 +229,26 @@ class Watcher extends Thread
 		{
 			addIdent();
 			main.addText(source.toString(), "key");
-			main.addText(" => ");
-			main.addText(target.toString(), "key");
+			main.addText(" =>");
+			for(Target target : targets)
+			{
+				main.addText(" ");
+				addLabel(target);
+				main.addText(target.getPath().toString(), "key");
+			}
 			main.addText("\n");
 		}
 
+		state.load();
+
 		try(final WatchService service = source.getFileSystem().newWatchService())
 		{
+			this.service = service;
+			if(stopping)
+			{
+				return;
+			}
+
 			// Start watching.
 			final Watcher finalThis = this;
 			final WatchEvent.Kind<?>[] kinds =
@@ -126,7 +267,7 @@ class Watcher extends Thread
 					(WatchEvent.Modifier)(c.getField("FILE_TREE").get(null))
 				};
 				WatchKey key = source.register(service, kinds, modifiers);
-				keys.put(key, source);
+				keys.put(key, paths);
 				finalThis.isWindows = true;
 			}
 			catch(ClassNotFoundException e)
@@ -135,6 +276,9 @@ class Watcher extends Thread
 				// trying to do them all at once, which might be slower diskwise.
 				synchronized(main.getStartupSynch())
 				{
+					// The walk reads attributes of every file anyway, so use it to
+					// fill in the source digest tree.
+					state.startSourceScan();
 					Files.walkFileTree(source, new SimpleFileVisitor<Path>()
 					{
 						@Override
@@ -146,15 +290,30 @@ class Watcher extends Thread
 								return FileVisitResult.SKIP_SUBTREE;
 							}
 							WatchKey key = path.register(service, kinds);
-							keys.put(key, path);
+							keys.put(key, paths.intern(source.relativize(path)));
 							finalThis.folderCount++;
+							state.sourceFound(source.relativize(path), attr);
+							return FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFile(Path file, BasicFileAttributes attr)
+							throws IOException
+						{
+							state.sourceFound(source.relativize(file), attr);
 							return FileVisitResult.CONTINUE;
 						}
 					});
+					state.finishSourceScan();
 				}
 			}
 			catch(Exception e)
 			{
+				if(stopping)
+				{
+					showStopped();
+					return;
+				}
 				synchronized(main)
 				{
 					addIdent();
@@ -182,30 +341,67 @@ class Watcher extends Thread
 				}
 			}
 			main.startupFinished(this);
+			if(isGitCatchUp())
+			{
+				// Pick up anything git changed while not running.
+				check();
+			}
+			resumeCopies();
+			for(Target target : targets)
+			{
+				if(target.getTrash() != null)
+				{
+					target.getTrash().start();
+				}
+				if(target.getAuditInterval() > 0)
+				{
+					synchronized(audits)
+					{
+						if(!stopping)
+						{
+							audits.add(main.getVerifier().scheduleAudit(this, target,
+								target.getAuditInterval(), target.getThrottle(true)));
+						}
+					}
+				}
+			}
 
 			try
 			{
 				while (true)
 				{
-					// Block until events are present.
-					WatchKey key = service.take();
+					// Block until events are present, or until held editor temp
+					// files are due.
+					WatchKey key = held.isEmpty() ? service.take()
+						: service.poll(EDITOR_TEMP_HOLD, TimeUnit.MILLISECONDS);
 
-					// Read all events.
+					// Read all events, collecting actions to add to the queue in one go.
+					ActionQueue.Batch batch = main.getQueue().newBatch(this);
+					releaseHeld(batch);
+					if(key == null)
+					{
+						main.getQueue().add(batch);
+						continue;
+					}
 					eventLoop: for(WatchEvent<?> event : key.pollEvents())
 					{
 						Path sourcePath, relative;
+						PathNode node;
 						if(event.context() == null)
 						{
 							sourcePath = null;
 							relative = null;
+							node = null;
 						}
 						else
 						{
-							sourcePath = keys.get(key).resolve(event.context().toString());
-							relative = source.relativize(sourcePath);
+							node = keys.get(key).lookup(source.getFileSystem().getPath(
+								event.context().toString()));
+							relative = node.toPath();
+							sourcePath = source.resolve(relative);
 						}
 						Kind<?> kind = event.kind();
-						debugLog(relative, kind);
+						Events.record(Events.Type.WATCH_EVENT, num, relative, kind.name());
 						if(relative != null)
 						{
 							if(relative.isAbsolute() || relative.startsWith(".."))
@@ -226,37 +422,25 @@ class Watcher extends Thread
 								throw new Exception("Unexpected null path for event kind " + event.kind());
 							}
 						}
-						if(event.kind().equals(StandardWatchEventKinds.ENTRY_CREATE))
-						{
-							main.getQueue().copy(this, relative);
-						}
-						else if(event.kind().equals(StandardWatchEventKinds.ENTRY_DELETE))
-						{
-							main.getQueue().delete(this, relative);
-						}
-						else if(event.kind().equals(StandardWatchEventKinds.ENTRY_MODIFY))
-						{
-							// 'Modify' for directories is ignored.
-							if(!Files.isDirectory(sourcePath))
-							{
-								main.getQueue().copy(this, relative);
-							}
-						}
-						else if(event.kind().equals(StandardWatchEventKinds.OVERFLOW))
-						{
-							// This should re-copy everything.
-							main.getQueue().copy(this, source.relativize(source));
-						}
+						addEvent(node, kind, batch);
 					}
+					main.getQueue().add(batch);
 
 					if(!key.reset())
 					{
 						key.cancel();
+						// The folder has gone, so forget its path.
+						keys.remove(key).release();
 					}
 				}
 			}
 			catch(Exception e)
 			{
+				if(stopping)
+				{
+					showStopped();
+					return;
+				}
 				synchronized(main)
 				{
 					addIdent();
@@ -267,8 +451,11 @@ class Watcher extends Thread
 			}
 			finally
 			{
-				// Always mark error when exiting this thread.
-				main.markError();
+				// Always mark error when exiting this thread, unless it was stopped.
+				if(!stopping)
+				{
+					main.markError();
+				}
 			}
 		}
 		catch(IOException e)
@@ -282,261 +469,1641 @@ class Watcher extends Thread
 	}
 
 	/**
-	 * Called to cause the entire folder to be wiped and re-copied.
-	 */
-	public void wipe()
-	{
-		main.getQueue().copy(this, FileSystems.getDefault().getPath("."));
-	}
-
-	/**
-	 * Deletes contents of the target path and re-copies it from the source path.
-	 *
-	 * This method is called on the QUEUE thread not the watcher thread.
-	 *
-	 * @param path Relative path
-	 * @return True if completed without error 
+	 * Adds the action for a watch event to a batch. Editor temp files are held
+	 * back, and not copied at all if they are deleted soon enough.
+	 * @param node Path that changed, or null for an overflow
+	 * @param kind Event kind
+	 * @param batch Batch to add to
 	 */
-	public boolean copy(Path path)
+	void addEvent(PathNode node, Kind<?> kind, ActionQueue.Batch batch)
 	{
-		boolean[] errorState = { false };
-		innerDelete(path, true, errorState);
-		Path sourceCopy = source.resolve(path).normalize();
-		Path targetCopy = target.resolve(path).normalize();
-
-		main.addText("Copy");
-
-		if(Files.isDirectory(sourceCopy))
+		Path relative = node == null ? null : node.toPath();
+		Path sourcePath = node == null ? null : source.resolve(relative);
+		state.sourceEvent(sourcePath, relative, kind);
+		if(relative != null && isEditorTemp(relative))
 		{
-			try
+			if(!kind.equals(StandardWatchEventKinds.ENTRY_DELETE))
 			{
-				Files.createDirectories(targetCopy.getParent());
-				long start = System.currentTimeMillis();
-				final boolean[] walkError = { false };
-				Files.walkFileTree(sourceCopy, new FileVisitor<Path>()
-				{
-					private int dot;
-
-					@Override
-					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-						throws IOException
-					{
-						Path targetFile = target.resolve(source.relativize(file));
-						try
-						{
-							copyWithRetry(file, targetFile);
-						}
-						catch(NoSuchFileException e)
-						{
-							// Indicates the file was deleted while copying, so ignore.
-							walkError[0] = true;
-						}
-						dot++;
-						if(dot >= 100)
-						{
-							dot = 0;
-							main.addText(" .");
-						}
-						return FileVisitResult.CONTINUE;
-					}
-
-					@Override
-					public FileVisitResult preVisitDirectory(Path dir,
-						BasicFileAttributes attrs) throws IOException
-					{
-						if(Main.shouldSkipPath(source.relativize(dir)))
-						{
-							return FileVisitResult.SKIP_SUBTREE;
-						}
-						Path targetDir = target.resolve(source.relativize(dir));
-						Files.createDirectories(targetDir);
-						return FileVisitResult.CONTINUE;
-					}
-
-					@Override
-					public FileVisitResult postVisitDirectory(Path dir, IOException e)
-						throws IOException
-					{
-						if(e != null)
-						{
-							if (e instanceof NoSuchFileException)
-							{
-								walkError[0] = true;
-							}
-							else
-							{
-								throw e;
-							}
-						}
-						return FileVisitResult.CONTINUE;
-					}
-
-					@Override
-					public FileVisitResult visitFileFailed(Path arg0, IOException e)
-						throws IOException
-					{
-						if (e instanceof NoSuchFileException)
-						{
-							walkError[0] = true;
-						}
-						else
-						{
-							throw e;
-						}
-						walkError[0] = true;
-						return FileVisitResult.CONTINUE;
-					}
-				});
-				if (walkError[0])
-				{
-					// NoSuchFileException, thrown if things are changing underfoot.
-					main.addText(" PARTIAL ", "key");
-				}
-				else
+				// Don't copy yet, it will probably be gone soon.
+				if(!held.containsKey(node))
 				{
-					main.addText(" OK ", "key");
+					held.put(node, System.currentTimeMillis());
 				}
-				showSlowTime(start);
+				return;
 			}
-			catch(IOException e)
+			if(held.remove(node) != null && !isOnTargets(relative))
 			{
-				main.addText(" ERROR\n", "error");
-				e.printStackTrace();
-				if (debug) {
-					main.addText("\n" + e.toString() + "\n");
-				}
-				return false;
+				// Came and went without being copied.
+				return;
 			}
 		}
-		else
+		if(kind.equals(StandardWatchEventKinds.ENTRY_CREATE))
 		{
-			try
+			batch.copy(node, getPriority(sourcePath));
+		}
+		else if(kind.equals(StandardWatchEventKinds.ENTRY_DELETE))
+		{
+			batch.delete(node);
+		}
+		else if(kind.equals(StandardWatchEventKinds.ENTRY_MODIFY))
+		{
+			// 'Modify' for directories is ignored.
+			ActionQueue.Priority priority = getPriority(sourcePath);
+			if(priority != ActionQueue.Priority.FOLDER)
 			{
-				Files.createDirectories(targetCopy.getParent());
-				long start = System.currentTimeMillis();
-				copyWithRetry(sourceCopy, targetCopy);
-				main.addText(" OK ", "key");
-				showSlowTime(start);
+				batch.copy(node, priority);
 			}
-			catch(NoSuchFileException e)
+		}
+		else if(kind.equals(StandardWatchEventKinds.OVERFLOW))
+		{
+			if(isGitCatchUp())
 			{
-				// If the source file was already deleted, then ignore this
-				// error as we do not need it to be copied now.
-				main.addText(" ABSENT ", "key");
+				// Compare with a scan of the source instead of copying
+				// everything.
+				scanAfterOverflow = true;
+				check();
 			}
-			catch(IOException e)
+			else
 			{
-				// Other errors are shown as error.
-				main.addText(" ERROR\n", "error");
-				e.printStackTrace();
-				if (debug) {
-					main.addText("\n" + e.toString() + "\n");
-				}
-				return false;
+				// This should re-copy everything.
+				batch.copy(paths, ActionQueue.Priority.BULK);
 			}
+			held.clear();
 		}
-		main.addText("\n");
-		return !errorState[0];
 	}
 
 	/**
-	 * Same as Files.copy, but retries for errors which were observed to be
-	 * temporary due to simultaneous changes during the copy process.
-	 * @param source Source path
-	 * @param target Target path
-	 * @throws IOException Exceptions that we don't retry for, or failed retries
+	 * Checks whether a file name matches the temporary files that editors use
+	 * when saving: vim's write test file and backup (file~), and JetBrains
+	 * safe write files.
+	 * @param relative Relative path
+	 * @return True if it's an editor temp file
 	 */
-	private static void copyWithRetry(Path source, Path target) throws IOException
+	static boolean isEditorTemp(Path relative)
 	{
-		IOException last = null;
-		for(int retries = 0; retries < MAX_COPY_RETRIES; retries ++)
+		Path fileName = relative.getFileName();
+		if(fileName == null)
 		{
-			try
-			{
-				Files.copy(source, target);
-				return;
-			}
-			catch(AccessDeniedException e)
-			{
-				last = e;
-				try
-				{
-					sleep(50);
-				}
-				catch(InterruptedException e1)
-				{
-				}
-			}
+			return false;
 		}
-		throw last;
+		String name = fileName.toString();
+		if(name.endsWith("~") || name.endsWith("___jb_tmp___")
+			|| name.endsWith("___jb_old___"))
+		{
+			return true;
+		}
+		if(name.matches("[0-9]{4,5}"))
+		{
+			int number = Integer.parseInt(name);
+			return number >= VIM_TEST_FILE && (number - VIM_TEST_FILE) % 123 == 0;
+		}
+		return false;
 	}
 
-	private void showSlowTime(long start)
+	/**
+	 * Adds copies for held editor temp files that have been around too long
+	 * and still exist, so they probably aren't temporary after all.
+	 * @param batch Batch to add to
+	 */
+	private void releaseHeld(ActionQueue.Batch batch)
 	{
-		long time = System.currentTimeMillis() - start;
-		if (time > 500)
+		long now = System.currentTimeMillis();
+		for(Iterator<Map.Entry<PathNode, Long>> i = held.entrySet().iterator(); i.hasNext();)
 		{
-			main.addText(time + "", "slow");
-			main.addText("ms ");
+			Map.Entry<PathNode, Long> entry = i.next();
+			if(now - entry.getValue() < EDITOR_TEMP_HOLD)
+			{
+				continue;
+			}
+			i.remove();
+			Path sourcePath = source.resolve(entry.getKey().toPath());
+			if(Files.exists(sourcePath))
+			{
+				batch.copy(entry.getKey(), getPriority(sourcePath));
+			}
 		}
 	}
 
 	/**
-	 * Deletes contents of the target path.
-	 *
-	 * This method is called on the QUEUE thread not the watcher thread.
-	 *
-	 * @param path Relative path
-	 * @return True if completed without error 
+	 * Checks whether a held editor temp file may have reached a target. The
+	 * cache knows about everything copied recently, so if it doesn't know
+	 * the path, the file was created since and never copied.
+	 * @param relative Relative path
+	 * @return True if the cache has the path as a file or folder on any target
 	 */
-	public boolean delete(Path path)
+	private boolean isOnTargets(Path relative)
 	{
-		boolean[] errorState = { false };
-		if(innerDelete(path, false, errorState))
+		for(Target target : targets)
 		{
-			main.addText("\n");
+			TargetCache.State cached = target.getCache().get(relative);
+			if(cached != null && cached != TargetCache.State.ABSENT)
+			{
+				return true;
+			}
 		}
-		return !errorState[0];
+		return false;
 	}
 
-	private boolean innerDelete(Path path, boolean displayAnyway, boolean[] errorState)
+	/**
+	 * Works out the priority for copying a changed file or folder.
+	 * @param sourcePath Full source path
+	 * @return FOLDER for folders, BULK for large files, INTERACTIVE otherwise
+	 */
+	private static ActionQueue.Priority getPriority(Path sourcePath)
 	{
-		Path targetCopy = target.resolve(path);
-
-		// Skip if it doesn't exist or if you're trying to delete the root folder
-		boolean exists = Files.exists(targetCopy);
-		boolean isRoot = false;
-		if(exists)
+		try
 		{
-			try
+			BasicFileAttributes attrs = Files.readAttributes(sourcePath,
+				BasicFileAttributes.class);
+			if(attrs.isDirectory())
 			{
-				isRoot = Files.isSameFile(target, targetCopy);
+				return ActionQueue.Priority.FOLDER;
+			}
+			if(attrs.size() >= ResumableCopy.MIN_SIZE)
+			{
+				return ActionQueue.Priority.BULK;
+			}
+		}
+		catch(IOException e)
+		{
+			// Probably deleted already; the copy will find out.
+		}
+		return ActionQueue.Priority.INTERACTIVE;
+	}
+
+	/**
+	 * Stops watching, e.g. because the folder was removed from settings. Actions
+	 * already in the queue still happen.
+	 */
+	public void shutdown()
+	{
+		stopping = true;
+		synchronized(audits)
+		{
+			for(ScheduledFuture<?> audit : audits)
+			{
+				audit.cancel(false);
+			}
+		}
+		WatchService service = this.service;
+		if(service != null)
+		{
+			try
+			{
+				service.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void showStopped()
+	{
+		synchronized(main)
+		{
+			addIdent();
+			main.addText("Stopped watching ");
+			main.addText(source.toString(), "key");
+			main.addText("\n");
+		}
+	}
+
+	/**
+	 * Called to cause the entire folder to be wiped and re-copied.
+	 */
+	public void wipe()
+	{
+		main.getQueue().copy(this, FileSystems.getDefault().getPath("."));
+	}
+
+	/**
+	 * Called to check whether the target is in sync with the source.
+	 */
+	public void check()
+	{
+		main.getQueue().check(this);
+	}
+
+	/**
+	 * Compares digest trees of the source and each target and queues copies or
+	 * deletes for anything that differs. If the trees are not known, they are
+	 * built by walking the folders first. Targets using git catch-up are
+	 * compared with the source's git index instead, if their tree is known.
+	 *
+	 * This method is called on the QUEUE thread not the watcher thread.
+	 *
+	 * @return True if completed without error
+	 */
+	@Override
+	public boolean checkSync()
+	{
+		addIdent();
+		main.addText("Check");
+		long start = System.currentTimeMillis();
+		Path root = source.relativize(source);
+		DigestTree index = null;
+		boolean needSource = false;
+		// The index misses unstaged and untracked changes, so it is only worth
+		// using to save a scan of the source.
+		boolean useIndex = !scanAfterOverflow && !state.isSourceKnown();
+		scanAfterOverflow = false;
+		for(Target target : targets)
+		{
+			if(useIndex && target.isGitCatchUp() && state.isTargetKnown(target.getPath()))
+			{
+				if(index == null)
+				{
+					index = readGitIndex(root);
+				}
+				if(index != null)
+				{
+					continue;
+				}
+			}
+			needSource = true;
+		}
+		if(index != null)
+		{
+			main.addText(" - Git index");
+		}
+		if(needSource && !state.isSourceKnown())
+		{
+			main.addText(" - Scan source");
+			try
+			{
+				state.scanSource();
+			}
+			catch(IOException e)
+			{
+				main.addText(" ERROR\n", "error");
+				e.printStackTrace();
+				return false;
+			}
+		}
+		boolean ok = true;
+		for(Target target : targets)
+		{
+			main.addText(" -");
+			if(target.getLabel() != null)
+			{
+				main.addText(" ");
+				addLabel(target);
+			}
+			if(!state.isTargetKnown(target.getPath()))
+			{
+				main.addText(" Scan target -");
+				// A scan may find changes made by something else.
+				target.getCache().clear();
+				try
+				{
+					state.scanTarget(target.getPath(), target.getTrashFolder());
+				}
+				catch(IOException e)
+				{
+					main.addText(" ERROR ", "error");
+					e.printStackTrace();
+					ok = false;
+					continue;
+				}
+			}
+			DigestTree.Diff diff = index != null && target.isGitCatchUp()
+				&& state.isTargetKnown(target.getPath())
+				? state.gitDiff(target.getPath(), index, root)
+				: state.diff(target.getPath(), root);
+			int count = diff.copies.size() + diff.deletes.size();
+			if(count == 0)
+			{
+				main.addText(" In sync ", "key");
+			}
+			else
+			{
+				main.addText(" ");
+				main.addText(count + "", "key");
+				main.addText(" differences ");
+			}
+			// With one target, queue actions for all targets so that they can
+			// coalesce with the ones from watch events.
+			Target only = targets.size() == 1 ? null : target;
+			for(Path path : diff.deletes)
+			{
+				main.getQueue().delete(this, path, only);
+			}
+			for(Path path : diff.copies)
+			{
+				main.getQueue().copy(this, path, only);
+			}
+		}
+		showSlowTime(start);
+		main.addText("\n");
+		return ok;
+	}
+
+	/**
+	 * @param target Target
+	 * @return New name for the old copy of the target when a staged copy is
+	 *   swapped in
+	 */
+	private static Path getOldFolder(Target target)
+	{
+		return target.getPath().resolveSibling(target.getPath().getFileName()
+			+ OLD_SUFFIX + System.currentTimeMillis());
+	}
+
+	/**
+	 * Renames a folder next to a target out of the way and deletes it in the
+	 * background. Old copies left over from earlier swaps are deleted too.
+	 * @param folder Folder
+	 * @param target Target
+	 * @return True if done, or there was nothing to move
+	 */
+	private boolean moveAside(Path folder, Target target)
+	{
+		final String prefix = target.getPath().getFileName() + OLD_SUFFIX;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(
+			target.getPath().getParent(), new DirectoryStream.Filter<Path>()
+			{
+				@Override
+				public boolean accept(Path entry)
+				{
+					return entry.getFileName().toString().startsWith(prefix);
+				}
+			}))
+		{
+			for(Path old : stream)
+			{
+				target.getCleaner().delete(old);
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+		if(!Files.exists(folder, LinkOption.NOFOLLOW_LINKS))
+		{
+			return true;
+		}
+		try
+		{
+			Path old = getOldFolder(target);
+			Files.move(folder, old, StandardCopyOption.ATOMIC_MOVE);
+			target.getCleaner().delete(old);
+			return true;
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Queues copies that an earlier run didn't finish, to carry on from where
+	 * they got to. Progress for targets that have changed since is discarded.
+	 */
+	void resumeCopies()
+	{
+		List<String> targetPaths = new ArrayList<String>();
+		for(Target target : targets)
+		{
+			targetPaths.add(target.getPath().toString());
+		}
+		for(CopyCheckpoint checkpoint : CopyCheckpoint.list(source))
+		{
+			Target only = null;
+			if(!checkpoint.getTargets().equals(targetPaths))
+			{
+				int index = checkpoint.getTargets().size() == 1
+					? targetPaths.indexOf(checkpoint.getTargets().get(0)) : -1;
+				if(index == -1)
+				{
+					checkpoint.delete();
+					continue;
+				}
+				only = targets.get(index);
+			}
+			synchronized(resuming)
+			{
+				resuming.add(checkpoint);
+			}
+			main.getQueue().resume(this, source.getFileSystem().getPath(checkpoint.getPath()),
+				only);
+		}
+	}
+
+	/**
+	 * Takes the saved progress of a copy queued by {@link #resumeCopies()}.
+	 * @param path Relative path being copied
+	 * @param targets Targets being copied to
+	 * @return Checkpoint, or null if this copy should start from scratch
+	 */
+	private CopyCheckpoint takeResume(Path path, List<Target> targets)
+	{
+		synchronized(resuming)
+		{
+			for(Iterator<CopyCheckpoint> i = resuming.iterator(); i.hasNext();)
+			{
+				CopyCheckpoint checkpoint = i.next();
+				if(checkpoint.isFor(path, targets))
+				{
+					i.remove();
+					return checkpoint;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Drops saved progress at or inside a path that a new copy is about to
+	 * redo, so that it isn't resumed afterwards.
+	 * @param path Relative path being copied
+	 * @param targets Targets being copied to
+	 */
+	private void dropResume(Path path, List<Target> targets)
+	{
+		List<String> targetPaths = new ArrayList<String>();
+		for(Target target : targets)
+		{
+			targetPaths.add(target.getPath().toString());
+		}
+		PathNode node = paths.lookup(path);
+		synchronized(resuming)
+		{
+			for(Iterator<CopyCheckpoint> i = resuming.iterator(); i.hasNext();)
+			{
+				CopyCheckpoint checkpoint = i.next();
+				if(node.contains(paths.lookup(source.getFileSystem().getPath(checkpoint.getPath())))
+					&& targetPaths.containsAll(checkpoint.getTargets()))
+				{
+					i.remove();
+					checkpoint.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the source's git index, if it has one.
+	 * @param root Path representing the root
+	 * @return Tree of tracked files, or null if not available
+	 */
+	private DigestTree readGitIndex(Path root)
+	{
+		Path file = GitIndex.find(source);
+		if(file == null || !Files.exists(file))
+		{
+			return null;
+		}
+		try
+		{
+			return GitIndex.read(file, root);
+		}
+		catch(IOException e)
+		{
+			if(debug)
+			{
+				e.printStackTrace();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return True if all targets catch up using the git index
+	 */
+	private boolean isGitCatchUp()
+	{
+		for(Target target : targets)
+		{
+			if(!target.isGitCatchUp())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Saves digest trees so that the next check can be quick. Called when
+	 * exiting.
+	 */
+	public void saveState()
+	{
+		state.save();
+	}
+
+	/**
+	 * Starts deleting contents of the target path and re-copying it from the
+	 * source path. Nothing happens until the first call to {@link Copy#next()}.
+	 *
+	 * @param path Relative path
+	 * @param only Only target to copy to, or null for all targets
+	 * @return Copy in progress
+	 */
+	@Override
+	public Copy startCopy(Path path, Target only)
+	{
+		return new Copy(path, selectTargets(only), false);
+	}
+
+	/**
+	 * Carries on with a copy queued by {@link #resumeCopies()}. Nothing happens
+	 * until the first call to {@link Copy#next()}.
+	 *
+	 * @param path Relative path
+	 * @param only Only target to copy to, or null for all targets
+	 * @return Copy in progress
+	 */
+	@Override
+	public Copy resumeCopy(Path path, Target only)
+	{
+		return new Copy(path, selectTargets(only), true);
+	}
+
+	/**
+	 * A copy which may be carried out in several chunks so that other actions
+	 * can run in between. Folders are walked in a fixed (sorted) order.
+	 * <p>
+	 * If there are several targets, each source file is read once and written
+	 * to all of them. A target that fails is left out for the rest of the copy
+	 * while the others carry on.
+	 * <p>
+	 * Files that are locked, or that change while a folder is being copied,
+	 * are tried again later through {@link ActionQueue.Retry}.
+	 *
+	 * Methods are called on the QUEUE thread not the watcher thread.
+	 */
+	class Copy implements ActionQueue.Copy
+	{
+		private Path path, sourceCopy;
+		private List<Target> allTargets, targets;
+		private Map<Target, IOException> failures = new HashMap<Target, IOException>();
+		private boolean started, finished, walkError, overwrite, file, resume;
+		private boolean[] errorState = { false };
+		private LinkedList<Folder> stack = new LinkedList<Folder>();
+		private ActionQueue.Retry retry;
+		private List<Path> locked = new ArrayList<Path>(), missed = new ArrayList<Path>();
+		private CopyCheckpoint checkpoint;
+		/** Staging targets (where a new copy is being built) and their real targets */
+		private Map<Target, Target> staged = new HashMap<Target, Target>();
+		private long start;
+		private int dot;
+
+		private Copy(Path path, List<Target> targets, boolean resume)
+		{
+			this.path = path;
+			this.resume = resume;
+			sourceCopy = source.resolve(path).normalize();
+			allTargets = targets;
+			this.targets = new ArrayList<Target>(targets);
+		}
+
+		/**
+		 * @return True if there is nothing more to copy
+		 */
+		@Override
+		public boolean isFinished()
+		{
+			return finished;
+		}
+
+		@Override
+		public ActionQueue.Retry getRetry()
+		{
+			return retry;
+		}
+
+		@Override
+		public void giveUp()
+		{
+			discardPartial();
+			discardStaged();
+			addIdent();
+			addPath(path);
+			main.addText(" - Copy");
+			if(retry == ActionQueue.Retry.LOCKED)
+			{
+				main.addText(" LOCKED", "error");
+				if(!file)
+				{
+					main.addText(" (" + locked.size() + " files)");
+				}
+			}
+			else if(retry == ActionQueue.Retry.PARTIAL)
+			{
+				main.addText(" PARTIAL", "error");
+				main.addText(" (" + missed.size() + " files still changing)");
+			}
+			else
+			{
+				for(Target target : failures.keySet())
+				{
+					addResult(target, "ERROR", "error");
+				}
+			}
+			main.addText("\n");
+		}
+
+		/**
+		 * Carries out the next chunk of the copy. The first chunk deletes the
+		 * target. Returns after {@link Watcher#COPY_CHUNK_TIME} ms if there is
+		 * still more to do.
+		 *
+		 * @return True if completed without error
+		 */
+		@Override
+		public boolean next()
+		{
+			if(!started)
+			{
+				started = true;
+				file = !Files.isDirectory(sourceCopy);
+				CopyCheckpoint saved = null;
+				if(resume)
+				{
+					saved = takeResume(path, allTargets);
+				}
+				else
+				{
+					dropResume(path, allTargets);
+				}
+				for(Target target : allTargets)
+				{
+					if(saved != null && isStaged(target)
+						&& !Files.isDirectory(target.getStagingFolder()))
+					{
+						// Staging folder has gone, so start again.
+						saved.delete();
+						saved = null;
+					}
+				}
+				if(saved != null && file)
+				{
+					// The partial file is kept, so don't delete the target.
+					addIdent();
+					addPath(path);
+					main.addText(" - Resume copy");
+					start = System.currentTimeMillis();
+					checkpoint = saved;
+					overwrite = true;
+					finished = true;
+					return copyFile() && !errorState[0];
+				}
+				else if(saved != null)
+				{
+					// An earlier run got part way, so carry on from there.
+					addIdent();
+					addPath(path);
+					main.addText(" - Resume copy");
+					start = System.currentTimeMillis();
+					checkpoint = saved;
+					try
+					{
+						for(Target target : allTargets)
+						{
+							if(isStaged(target))
+							{
+								Target staging = startStaging(target);
+								state.scanTarget(staging.getPath(), null);
+							}
+						}
+						createParents();
+						resumeWalk();
+					}
+					catch(IOException e)
+					{
+						return failed(e);
+					}
+				}
+				else
+				{
+					// A file that we wrote ourselves can just be overwritten, which
+					// saves checking and deleting it on the target first.
+					List<Target> deleteFrom = new ArrayList<Target>();
+					for(Target target : allTargets)
+					{
+						if(file && target.getCache().get(path) == TargetCache.State.FILE)
+						{
+							overwrite = true;
+						}
+						else if(isStaged(target)
+							&& moveAside(target.getStagingFolder(), target))
+						{
+							// The old copy stays in place until the new one is built.
+							startStaging(target);
+						}
+						else
+						{
+							deleteFrom.add(target);
+						}
+					}
+					innerDelete(path, deleteFrom, true, errorState);
+					main.addText(staged.isEmpty() ? "Copy" : "Copy (staged)");
+					start = System.currentTimeMillis();
+					if(file)
+					{
+						finished = true;
+						return copyFile() && !errorState[0];
+					}
+					checkpoint = new CopyCheckpoint(source, path, allTargets);
+					createParents();
+					try
+					{
+						enterFolder(sourceCopy);
+					}
+					catch(IOException e)
+					{
+						return failed(e);
+					}
+				}
+			}
+			else if(retry != null)
+			{
+				if(file)
+				{
+					return retryFile();
+				}
+				try
+				{
+					startRetry();
+				}
+				catch(IOException e)
+				{
+					return failed(e);
+				}
+			}
+			else
+			{
+				addIdent();
+				addPath(path);
+				main.addText(" - Copy");
+			}
+
+			Clock clock = main.getQueue().getClock();
+			long chunkEnd = clock.currentTimeMillis() + COPY_CHUNK_TIME;
+			try
+			{
+				while(!stack.isEmpty() && !targets.isEmpty())
+				{
+					if(clock.currentTimeMillis() >= chunkEnd)
+					{
+						saveCheckpoint();
+						main.addText(" ...\n");
+						return !errorState[0];
+					}
+					Folder folder = stack.getLast();
+					if(folder.index >= folder.entries.size())
+					{
+						stack.removeLast();
+						continue;
+					}
+					visit(folder.entries.get(folder.index++));
+				}
+			}
+			catch(IOException e)
+			{
+				return failed(e);
+			}
+			discardCheckpoint();
+
+			// Files that were locked, or changed underfoot, are tried again
+			// later by the queue.
+			if(!locked.isEmpty() && !targets.isEmpty())
+			{
+				retry = ActionQueue.Retry.LOCKED;
+				main.addText(" (" + locked.size() + " locked, will retry)");
+			}
+			else if(!missed.isEmpty() && !targets.isEmpty())
+			{
+				retry = ActionQueue.Retry.PARTIAL;
+				main.addText(" (" + missed.size() + " changed, will retry)");
+			}
+			else
+			{
+				finished = true;
+			}
+			// PARTIAL means NoSuchFileException, thrown if things are changing
+			// underfoot.
+			showResults(walkError ? "PARTIAL" : "OK");
+			// Staging stays in use until any retries are done.
+			if(finished)
+			{
+				swapStaged();
+			}
+			return !errorState[0] && failures.isEmpty();
+		}
+
+		/**
+		 * Rebuilds the walk from a checkpoint saved by an earlier run. Folders
+		 * that have gone since are left out.
+		 * @throws IOException Error reading the source
+		 */
+		private void resumeWalk() throws IOException
+		{
+			List<String> folders = checkpoint.getFolders(), lastNames = checkpoint.getLastNames();
+			if(folders.isEmpty())
+			{
+				enterFolder(sourceCopy);
+				return;
+			}
+			for(int i=0; i<folders.size(); i++)
+			{
+				Path dir = source.resolve(folders.get(i));
+				int depth = stack.size();
+				if(!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+				{
+					break;
+				}
+				enterFolder(dir);
+				if(stack.size() == depth)
+				{
+					break;
+				}
+				// Skip entries up to and including the last one taken, in the
+				// same order as the walk.
+				Folder folder = stack.getLast();
+				if(!lastNames.get(i).isEmpty())
+				{
+					Path last = dir.resolve(lastNames.get(i));
+					while(folder.index < folder.entries.size()
+						&& folder.entries.get(folder.index).compareTo(last) <= 0)
+					{
+						folder.index++;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Saves how far the walk has got, so that it can carry on after a restart.
+		 */
+		private void saveCheckpoint()
+		{
+			if(checkpoint == null)
+			{
+				return;
+			}
+			List<String> folders = new ArrayList<String>(), lastNames = new ArrayList<String>();
+			for(Folder folder : stack)
+			{
+				folders.add(source.relativize(folder.dir).toString());
+				lastNames.add(folder.index == 0 ? ""
+					: folder.entries.get(folder.index - 1).getFileName().toString());
+			}
+			checkpoint.set(folders, lastNames);
+			checkpoint.save();
+		}
+
+		private void discardCheckpoint()
+		{
+			if(checkpoint != null)
+			{
+				checkpoint.delete();
+				checkpoint = null;
+			}
+		}
+
+		/**
+		 * Forgets saved progress of a copy that won't be carried on, and for a
+		 * large file deletes any partial copy from the targets.
+		 */
+		private void discardPartial()
+		{
+			if(file && checkpoint != null)
+			{
+				for(Target target : allTargets)
+				{
+					ResumableCopy.discard(target.getPath().resolve(path));
+				}
+			}
+			discardCheckpoint();
+		}
+
+		/**
+		 * @param target Target
+		 * @return True if this copy should build a new copy of the target in
+		 *   its staging folder rather than wiping it
+		 */
+		private boolean isStaged(Target target)
+		{
+			return !file && sourceCopy.equals(source) && target.isStagedRecopy();
+		}
+
+		/**
+		 * Switches the copy to write to a target's staging folder.
+		 * @param target Target
+		 * @return Staging target
+		 */
+		private Target startStaging(Target target)
+		{
+			Target staging = target.createStaging();
+			state.startStaging(staging.getPath());
+			staged.put(staging, target);
+			targets.set(targets.indexOf(target), staging);
+			return staging;
+		}
+
+		/**
+		 * @param target Target or staging target
+		 * @return Real target
+		 */
+		private Target getReal(Target target)
+		{
+			Target real = staged.get(target);
+			return real == null ? target : real;
+		}
+
+		/**
+		 * Renames each staging folder that was built without errors into place
+		 * of its target, and gets rid of the old copy in the background. Called
+		 * once the copy and its retries are finished. Changes made while the
+		 * new copy was being built are picked up by a check.
+		 */
+		private void swapStaged()
+		{
+			if(staged.isEmpty())
+			{
+				return;
+			}
+			addIdent();
+			addPath(path);
+			main.addText(" - Swap");
+			long start = System.currentTimeMillis();
+			boolean swapped = false;
+			for(Map.Entry<Target, Target> entry : staged.entrySet())
+			{
+				Target staging = entry.getKey(), target = entry.getValue();
+				int index = targets.indexOf(staging);
+				if(index == -1)
+				{
+					// Failed part way, so the old copy stays.
+					discard(staging, target);
+					continue;
+				}
+				try
+				{
+					Path old = getOldFolder(target);
+					Files.move(target.getPath(), old, StandardCopyOption.ATOMIC_MOVE);
+					try
+					{
+						Files.move(staging.getPath(), target.getPath(),
+							StandardCopyOption.ATOMIC_MOVE);
+					}
+					catch(IOException e)
+					{
+						Files.move(old, target.getPath(), StandardCopyOption.ATOMIC_MOVE);
+						throw e;
+					}
+					target.getCleaner().delete(old);
+					state.swapStaging(staging.getPath(), target.getPath());
+					target.getCache().clear();
+					targets.set(index, target);
+					addResult(target, "OK", "key");
+					swapped = true;
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+					targets.remove(index);
+					failures.put(target, e);
+					discard(staging, target);
+					addResult(target, "ERROR", "error");
+				}
+			}
+			staged.clear();
+			showSlowTime(start);
+			main.addText("\n");
+			if(swapped)
+			{
+				check();
+			}
+		}
+
+		/**
+		 * Gets rid of all staging folders, after an error.
+		 */
+		private void discardStaged()
+		{
+			for(Map.Entry<Target, Target> entry : staged.entrySet())
+			{
+				discard(entry.getKey(), entry.getValue());
+			}
+			staged.clear();
+		}
+
+		private void discard(Target staging, Target target)
+		{
+			state.discardStaging(staging.getPath());
+			if(!moveAside(staging.getPath(), target))
+			{
+				target.getCleaner().delete(staging.getPath());
+			}
+		}
+
+		/**
+		 * Tries a single file again after it was locked or targets failed.
+		 * @return True if completed without error
+		 */
+		private boolean retryFile()
+		{
+			if(retry == ActionQueue.Retry.TARGET)
+			{
+				targets = new ArrayList<Target>(failures.keySet());
+				failures.clear();
+				// Anything at the target path was left by the failed attempt.
+				overwrite = true;
+			}
+			retry = null;
+			addIdent();
+			addPath(path);
+			main.addText(" - Retry");
+			finished = true;
+			return copyFile();
+		}
+
+		/**
+		 * Starts another pass of a folder copy for just the files that were
+		 * locked or changed underfoot last time. Anything that has gone from
+		 * the source is deleted from the targets instead.
+		 * @throws IOException Error reading the source
+		 */
+		private void startRetry() throws IOException
+		{
+			retry = null;
+			walkError = false;
+			addIdent();
+			addPath(path);
+			main.addText(" - Retry");
+			start = System.currentTimeMillis();
+			List<Path> files = new ArrayList<Path>(locked);
+			files.addAll(missed);
+			locked.clear();
+			missed.clear();
+			for(Path retryFile : files)
+			{
+				if(Files.exists(retryFile, LinkOption.NOFOLLOW_LINKS))
+				{
+					visit(retryFile);
+				}
+				else if(staged.isEmpty())
+				{
+					main.getQueue().delete(Watcher.this, source.relativize(retryFile),
+						allTargets.size() == Watcher.this.targets.size() ? null : allTargets.get(0));
+				}
+				else
+				{
+					deleteGone(source.relativize(retryFile));
+				}
+			}
+		}
+
+		/**
+		 * Deletes a path that has gone from the source during a staged copy.
+		 * Staging folders aren't swapped in yet, so it is deleted from them
+		 * directly; deletes for other targets are queued as usual.
+		 * @param relative Relative path
+		 */
+		private void deleteGone(Path relative)
+		{
+			for(Target target : new ArrayList<Target>(targets))
+			{
+				if(!staged.containsKey(target))
+				{
+					main.getQueue().delete(Watcher.this, relative, target);
+					continue;
+				}
+				try
+				{
+					deleteIfPresent(target.getPath().resolve(relative), target.getThrottle(true));
+					state.targetRemoved(target.getPath(), relative);
+					target.getCache().removed(relative);
+				}
+				catch(IOException e)
+				{
+					failed(target, relative, e);
+				}
+			}
+		}
+
+		private boolean copyFile()
+		{
+			try
+			{
+				BasicFileAttributes attrs = Files.readAttributes(sourceCopy,
+					BasicFileAttributes.class);
+				if(checkpoint == null && attrs.size() >= ResumableCopy.MIN_SIZE)
+				{
+					// Saved so that the copy is queued again after a restart.
+					checkpoint = new CopyCheckpoint(source, path, allTargets);
+					checkpoint.save();
+				}
+				createParents();
+				long start = System.currentTimeMillis();
+				copyToTargets(sourceCopy, path, attrs, false);
+				if(!failures.isEmpty())
+				{
+					// Targets that failed are tried again later by the queue.
+					retry = ActionQueue.Retry.TARGET;
+					finished = false;
+				}
+				else
+				{
+					discardCheckpoint();
+				}
+				showResults(start, "OK");
+			}
+			catch(NoSuchFileException e)
+			{
+				// If the source file was already deleted, then ignore this
+				// error as we do not need it to be copied now.
+				discardPartial();
+				main.addText(" ABSENT ", "key");
+				main.addText("\n");
+			}
+			catch(IOException e)
+			{
+				// The targets might be partly written, so don't count them as there.
+				for(Target target : targets)
+				{
+					state.targetRemoved(target.getPath(), path);
+				}
+				if(isLocked(e))
+				{
+					retry = ActionQueue.Retry.LOCKED;
+					finished = false;
+					main.addText(" LOCKED", "slow");
+					main.addText(" - will retry\n");
+					return !errorState[0];
+				}
+				return failed(e);
+			}
+			return !errorState[0] && (retry != null || failures.isEmpty());
+		}
+
+		/**
+		 * Shows the result for each target and ends the line.
+		 * @param result Result for targets that didn't fail
+		 */
+		private void showResults(String result)
+		{
+			showResults(start, result);
+		}
+
+		private void showResults(long start, String result)
+		{
+			for(Target target : allTargets)
+			{
+				if(failures.containsKey(target) && retry == ActionQueue.Retry.TARGET)
+				{
+					addResult(target, "RETRY", "slow");
+				}
+				else if(failures.containsKey(target))
+				{
+					addResult(target, "ERROR", "error");
+				}
+				else
+				{
+					addResult(target, result, "key");
+				}
+			}
+			showSlowTime(start);
+			if(debug)
+			{
+				for(IOException e : failures.values())
+				{
+					main.addText("\n" + e.toString());
+				}
+			}
+			main.addText("\n");
+		}
+
+		/**
+		 * Called for an error that affects all targets, such as failing to read
+		 * the source.
+		 * @param e Exception
+		 * @return False
+		 */
+		private boolean failed(IOException e)
+		{
+			// Other errors are shown as error.
+			finished = true;
+			discardPartial();
+			for(Target target : targets)
+			{
+				failures.put(getReal(target), e);
+				target.getCache().clear();
+			}
+			targets.clear();
+			discardStaged();
+			e.printStackTrace();
+			showResults("OK");
+			return false;
+		}
+
+		/**
+		 * Leaves a target out of the rest of the copy after an error writing to it.
+		 * @param target Target
+		 * @param relative Relative path that failed
+		 * @param e Exception
+		 */
+		private void failed(Target target, Path relative, IOException e)
+		{
+			e.printStackTrace();
+			targets.remove(target);
+			failures.put(getReal(target), e);
+			// The target might be partly written, so don't count it as there.
+			state.targetRemoved(target.getPath(), relative);
+			target.getCache().clear();
+		}
+
+		private void createParents()
+		{
+			Path parent = path.normalize().getParent();
+			for(Target target : new ArrayList<Target>(targets))
+			{
+				if(target.getCache().get(parent) == TargetCache.State.FOLDER)
+				{
+					continue;
+				}
+				Events.Span span = Events.start(Events.Type.CREATE_FOLDERS);
+				try
+				{
+					Files.createDirectories(target.getPath().resolve(path).normalize().getParent());
+					Events.end(span, num, path.getParent(), target.getLabel(), 0);
+					target.getCache().folder(parent);
+				}
+				catch(IOException e)
+				{
+					failed(target, path, e);
+				}
+			}
+		}
+
+		/**
+		 * Copies a file to all targets that haven't failed.
+		 * @param file Source file
+		 * @param relative Relative path
+		 * @param attrs Source attributes (read before copying)
+		 * @param bulk True if part of a folder copy
+		 * @throws IOException Error reading the source
+		 */
+		private void copyToTargets(Path file, Path relative, BasicFileAttributes attrs,
+			boolean bulk) throws IOException
+		{
+			if(targets.isEmpty())
+			{
+				return;
+			}
+			// The file may already have been copied by an action that ran
+			// between chunks, so replace it.
+			boolean replace = bulk || overwrite;
+			CopyOption[] options = replace
+				? new CopyOption[] { StandardCopyOption.REPLACE_EXISTING }
+				: new CopyOption[0];
+			if(targets.size() == 1 || attrs.size() >= ResumableCopy.MIN_SIZE)
+			{
+				// Large files are copied to each target in turn rather than read
+				// once, so that each target can carry on from its own partial file.
+				for(Target target : new ArrayList<Target>(targets))
+				{
+					copyToTarget(file, relative, attrs, bulk, options, target);
+				}
+				return;
+			}
+
+			Events.Span span = Events.start(Events.Type.COPY);
+			Path[] targetFiles = new Path[targets.size()];
+			Throttle[] throttles = new Throttle[targets.size()];
+			for(int i=0; i<targetFiles.length; i++)
+			{
+				targetFiles[i] = targets.get(i).getPath().resolve(relative);
+				throttles[i] = targets.get(i).getThrottle(bulk);
+			}
+			IOException[] errors = FanOut.copy(Files.newInputStream(file), targetFiles,
+				throttles, replace);
+			Events.end(span, num, relative, targetFiles.length + " targets", attrs.size());
+			List<Target> copiedTo = new ArrayList<Target>(targets);
+			for(int i=0; i<errors.length; i++)
+			{
+				if(errors[i] != null)
+				{
+					failed(copiedTo.get(i), relative, errors[i]);
+				}
+				else
+				{
+					copied(copiedTo.get(i), relative, attrs, bulk);
+				}
+			}
+		}
+
+		/**
+		 * Copies a file to one target. If the target fails, it is left out of
+		 * the rest of the copy.
+		 * @param file Source file
+		 * @param relative Relative path
+		 * @param attrs Source attributes (read before copying)
+		 * @param bulk True if part of a folder copy
+		 * @param options Options for copying small files
+		 * @param target Target
+		 * @throws IOException Error reading the source
+		 */
+		private void copyToTarget(Path file, Path relative, BasicFileAttributes attrs,
+			boolean bulk, CopyOption[] options, Target target) throws IOException
+		{
+			Events.Span span = Events.start(Events.Type.COPY);
+			try
+			{
+				if(attrs.size() >= ResumableCopy.MIN_SIZE)
+				{
+					target.getThrottle(bulk).acquireFile();
+					ResumableCopy.copy(file, target.getPath().resolve(relative), attrs,
+						target.getThrottle(bulk), target.getParallelChunks());
+				}
+				else
+				{
+					transfer(file, target.getPath().resolve(relative),
+						target.getThrottle(bulk), options);
+				}
+				Events.end(span, num, relative, target.getLabel(), attrs.size());
+			}
+			catch(NoSuchFileException e)
+			{
+				// Could be the source or target. If the source is still
+				// there, the target folder was probably removed behind our
+				// back so the cache was wrong; try once more without it.
+				if(!Files.exists(file))
+				{
+					throw e;
+				}
+				try
+				{
+					target.getCache().clear();
+					Files.createDirectories(target.getPath().resolve(relative).getParent());
+					transfer(file, target.getPath().resolve(relative),
+						target.getThrottle(bulk), options);
+				}
+				catch(IOException e2)
+				{
+					failed(target, relative, e2);
+					return;
+				}
 			}
 			catch(IOException e)
 			{
-				throw new Error(e);
+				if(isLocked(e))
+				{
+					throw e;
+				}
+				if(!Files.exists(file))
+				{
+					throw new NoSuchFileException(file.toString());
+				}
+				failed(target, relative, e);
+				return;
 			}
+			copied(target, relative, attrs, bulk);
 		}
-		if(!exists)
+
+		private void copied(Target target, Path relative, BasicFileAttributes attrs,
+			boolean bulk)
 		{
-			if(displayAnyway)
+			state.targetCopied(target.getPath(), relative, attrs);
+			target.getCache().file(relative);
+			if(target.isVerify())
 			{
-				addIdent();
-				if(path.toString().equals("."))
+				// Hold this action's ticket until the check is done, so that
+				// waiting for the copy also waits for any repair.
+				main.getVerifier().verify(Watcher.this, target, relative,
+					target.getThrottle(bulk), main.getQueue().holdTicket());
+			}
+		}
+
+		private void visit(Path file) throws IOException
+		{
+			BasicFileAttributes attrs;
+			try
+			{
+				attrs = Files.readAttributes(file, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			}
+			catch(NoSuchFileException e)
+			{
+				walkError = true;
+				missed.add(file);
+				return;
+			}
+			if(attrs.isDirectory())
+			{
+				enterFolder(file);
+				return;
+			}
+
+			try
+			{
+				copyToTargets(file, source.relativize(file), attrs, true);
+			}
+			catch(NoSuchFileException e)
+			{
+				// Indicates the file was deleted while copying, so check it
+				// again later.
+				walkError = true;
+				missed.add(file);
+			}
+			catch(IOException e)
+			{
+				if(!isLocked(e))
 				{
-					main.addText("Recopy", "key");
+					throw e;
 				}
-				else
+				locked.add(file);
+			}
+			dot++;
+			if(dot >= 100)
+			{
+				dot = 0;
+				main.addText(" .");
+			}
+		}
+
+		private void enterFolder(Path dir) throws IOException
+		{
+			Path relative = source.relativize(dir);
+			if(Main.shouldSkipPath(relative))
+			{
+				return;
+			}
+			for(Target target : new ArrayList<Target>(targets))
+			{
+				if(target.getCache().get(relative) == TargetCache.State.FOLDER)
 				{
-					main.addText(path.toString(), "white");
+					state.targetFolder(target.getPath(), relative);
+					continue;
+				}
+				try
+				{
+					target.getThrottle(true).acquireFile();
+					Events.Span span = Events.start(Events.Type.CREATE_FOLDERS);
+					Files.createDirectories(target.getPath().resolve(relative));
+					Events.end(span, num, relative, target.getLabel(), 0);
+					state.targetFolder(target.getPath(), relative);
+					target.getCache().folder(relative);
+				}
+				catch(IOException e)
+				{
+					failed(target, relative, e);
 				}
-				main.addText(" - ");
 			}
-			return false;
+			Folder folder = new Folder();
+			folder.dir = dir;
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+			{
+				for(Path entry : stream)
+				{
+					folder.entries.add(entry);
+				}
+			}
+			catch(NoSuchFileException e)
+			{
+				walkError = true;
+				missed.add(dir);
+				return;
+			}
+			Collections.sort(folder.entries);
+			stack.addLast(folder);
 		}
+	}
+
+	/**
+	 * Folder being walked by a {@link Copy}.
+	 */
+	private static class Folder
+	{
+		private Path dir;
+		private List<Path> entries = new ArrayList<Path>();
+		private int index;
+	}
 
+	/**
+	 * Shows that a target file doesn't match the source, and queues a copy to
+	 * fix it.
+	 *
+	 * This method is called on verify or audit threads.
+	 *
+	 * @param target Target that doesn't match
+	 * @param path Relative path
+	 * @param problem Short description of problem e.g. "MISMATCH"
+	 * @param ticket Held queue ticket for the copy to share, or 0
+	 */
+	void repair(Target target, Path path, String problem, long ticket)
+	{
+		if(stopping)
+		{
+			return;
+		}
 		addIdent();
-		if(path.toString().equals("."))
+		addLabel(target);
+		addPath(path);
+		main.addText(" - Verify ");
+		main.addText(problem, "error");
+		main.addText(" - repairing\n");
+		// Something else changed the target, so don't trust the cache.
+		target.getCache().clear();
+		main.getQueue().copy(this, path, target, ticket);
+	}
+
+	/**
+	 * Releases a queue ticket held while a copied file was verified.
+	 * @param ticket Ticket, or 0
+	 */
+	void releaseTicket(long ticket)
+	{
+		main.getQueue().releaseTicket(ticket);
+	}
+
+	/**
+	 * Same as Files.copy, but applies rate limits.
+	 * @param source Source path
+	 * @param target Target path
+	 * @param throttle Rate limits to apply
+	 * @param options Copy options
+	 * @throws IOException Any error
+	 */
+	private static void transfer(Path source, Path target, Throttle throttle,
+		CopyOption... options) throws IOException
+	{
+		// Overwriting through a stream is a single open on the target, where
+		// Files.copy would check for and delete the old file first.
+		boolean replace = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING);
+		throttle.acquireFile();
+		if((throttle.limitsBytes() || replace) && !Files.isDirectory(source))
+		{
+			throttledCopy(source, target, throttle, options);
+		}
+		else
+		{
+			Files.copy(source, target, options);
+		}
+	}
+
+	/**
+	 * Checks for errors which were observed to be temporary, because another
+	 * program (such as antivirus or an IDE) has the file open. These are
+	 * retried later by the action queue.
+	 * @param e Exception
+	 * @return True if the file is probably locked
+	 */
+	private static boolean isLocked(IOException e)
+	{
+		if(e instanceof AccessDeniedException)
+		{
+			return true;
+		}
+		if(e instanceof FileSystemException && !(e instanceof NoSuchFileException))
+		{
+			// Windows sharing violation
+			String reason = ((FileSystemException)e).getReason();
+			return reason != null && reason.contains("another process");
+		}
+		return false;
+	}
+
+	/**
+	 * Copies a file a buffer at a time, waiting for the throttle before each
+	 * buffer.
+	 * @param source Source path
+	 * @param target Target path
+	 * @param throttle Rate limits to apply
+	 * @param options Copy options (only REPLACE_EXISTING is supported)
+	 * @throws IOException Any error
+	 */
+	private static void throttledCopy(Path source, Path target, Throttle throttle,
+		CopyOption... options) throws IOException
+	{
+		OpenOption[] openOptions = Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING)
+			? new OpenOption[0]
+			: new OpenOption[] { StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE };
+		try(InputStream in = Files.newInputStream(source);
+			OutputStream out = Files.newOutputStream(target, openOptions))
+		{
+			byte[] buffer = new byte[THROTTLED_BUFFER_SIZE];
+			while(true)
+			{
+				int read = in.read(buffer);
+				if(read == -1)
+				{
+					break;
+				}
+				throttle.acquireBytes(read);
+				out.write(buffer, 0, read);
+			}
+		}
+	}
+
+	private void addPath(Path path)
+	{
+		if(path.toString().equals(".") || path.toString().isEmpty())
 		{
 			main.addText("Recopy", "key");
 		}
@@ -544,23 +2111,189 @@ class Watcher extends Thread
 		{
 			main.addText(path.toString(), "white");
 		}
+	}
+
+	/**
+	 * Shows which target a result or path is for, if there is more than one.
+	 * @param target Target
+	 */
+	private void addLabel(Target target)
+	{
+		if(target.getLabel() != null)
+		{
+			main.addText(target.getLabel() + ":", "key");
+		}
+	}
+
+	/**
+	 * Shows the result of an operation on one target.
+	 * @param target Target
+	 * @param result Result e.g. "OK"
+	 * @param resultStyle Style for result
+	 */
+	private void addResult(Target target, String result, String resultStyle)
+	{
+		main.addText(" ");
+		addLabel(target);
+		main.addText(result, resultStyle);
+		main.addText(" ");
+	}
+
+	private void showSlowTime(long start)
+	{
+		long time = System.currentTimeMillis() - start;
+		if (time > 500)
+		{
+			main.addText(time + "", "slow");
+			main.addText("ms ");
+		}
+	}
+
+	/**
+	 * Deletes contents of the target path.
+	 *
+	 * This method is called on the QUEUE thread not the watcher thread.
+	 *
+	 * @param path Relative path
+	 * @param only Only target to delete from, or null for all targets
+	 * @return True if completed without error 
+	 */
+	@Override
+	public boolean delete(Path path, Target only)
+	{
+		boolean[] errorState = { false };
+		if(innerDelete(path, selectTargets(only), false, errorState))
+		{
+			main.addText("\n");
+		}
+		return !errorState[0];
+	}
+
+	private boolean innerDelete(Path path, List<Target> targets, boolean displayAnyway,
+		boolean[] errorState)
+	{
+		// Skip targets where it doesn't exist
+		List<Target> existing = new ArrayList<Target>();
+		for(Target target : targets)
+		{
+			TargetCache.State cached = target.getCache().get(path);
+			if(cached == null ? Files.exists(target.getPath().resolve(path))
+				: cached != TargetCache.State.ABSENT)
+			{
+				existing.add(target);
+			}
+			else
+			{
+				state.targetRemoved(target.getPath(), path);
+				target.getCache().removed(path);
+			}
+		}
+		if(existing.isEmpty())
+		{
+			if(displayAnyway)
+			{
+				addIdent();
+				addPath(path);
+				main.addText(" - ");
+			}
+			return false;
+		}
+
+		addIdent();
+		addPath(path);
 		main.addText(" - Delete");
-		if(Files.isDirectory(targetCopy))
+		for(Target target : existing)
+		{
+			Events.Span span = Events.start(Events.Type.DELETE);
+			boolean ok = deleteFromTarget(target, path);
+			Events.end(span, num, path, target.getLabel(), 0);
+			if(ok)
+			{
+				state.targetRemoved(target.getPath(), path);
+				target.getCache().removed(path);
+			}
+			else
+			{
+				errorState[0] = true;
+				target.getCache().clear();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes a path from one target, showing the result.
+	 * @param target Target
+	 * @param path Relative path
+	 * @return True if completed without error
+	 */
+	private boolean deleteFromTarget(Target target, Path path)
+	{
+		final Path targetCopy = target.getPath().resolve(path);
+
+		// Don't delete the root folder itself. If the cache knows what the
+		// path is, there's no need to ask the target.
+		TargetCache.State cached = target.getCache().get(path);
+		boolean isRoot, isDirectory;
+		if(cached == TargetCache.State.FILE || cached == TargetCache.State.FOLDER)
+		{
+			isRoot = path.normalize().toString().isEmpty();
+			isDirectory = cached == TargetCache.State.FOLDER;
+		}
+		else
 		{
 			try
 			{
-				long start = System.currentTimeMillis();
+				isRoot = Files.isSameFile(target.getPath(), targetCopy);
+			}
+			catch(IOException e)
+			{
+				return deleteFailed(target, e);
+			}
+			isDirectory = Files.isDirectory(targetCopy);
+		}
 
+		if(isDirectory)
+		{
+			final Throttle throttle = target.getThrottle(true);
+			final Trash trash = target.getTrash();
+			long start = System.currentTimeMillis();
+
+			// In trash mode, rename into the trash and let it be deleted in the
+			// background. If that doesn't work, carry on and delete normally.
+			if(trash != null && (isRoot ? trash.moveContentsToTrash(targetCopy)
+				: trash.moveToTrash(targetCopy)))
+			{
+				main.addText(" (trash)");
+				addResult(target, "OK", "key");
+				showSlowTime(start);
+				return true;
+			}
+
+			try
+			{
 				// Delete children.
 				Files.walkFileTree(targetCopy, new SimpleFileVisitor<Path>()
 				{
 					private int dot;
 
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir,
+						BasicFileAttributes attrs) throws IOException
+					{
+						// The trash folder is emptied by its own thread.
+						if(trash != null && dir.equals(trash.getFolder()))
+						{
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
 					@Override
 					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
 						throws IOException
 					{
-						deleteIfPresent(file);
+						deleteIfPresent(file, throttle);
 						dot++;
 						if(dot >= 100)
 						{
@@ -578,7 +2311,11 @@ class Watcher extends Thread
 						{
 							throw e;
 						}
-						deleteIfPresent(path);
+						// The folder itself is deleted below (unless it's the root).
+						if(!path.equals(targetCopy))
+						{
+							deleteIfPresent(path, throttle);
+						}
 						return FileVisitResult.CONTINUE;
 					}
 				});
@@ -586,34 +2323,15 @@ class Watcher extends Thread
 				// Delete folder itself - except root folder.
 				if(!isRoot)
 				{
-					try
-					{
-						deleteIfPresent(targetCopy);
-					}
-					catch(IOException e)
-					{
-						main.addText(" ERROR ", "error");
-						errorState[0] = true;
-						e.printStackTrace();
-						if (debug) {
-							main.addText("\n" + e.toString() + "\n");
-						}
-						return true;
-					}
+					deleteIfPresent(targetCopy, throttle);
 				}
 
-				main.addText(" OK ", "key");
+				addResult(target, "OK", "key");
 				showSlowTime(start);
 			}
 			catch(IOException e)
 			{
-				main.addText(" ERROR ", "error");
-				errorState[0] = true;
-				e.printStackTrace();
-				if (debug) {
-					main.addText("\n" + e.toString() + "\n");
-				}
-				return true;
+				return deleteFailed(target, e);
 			}
 		}
 		else
@@ -621,26 +2339,32 @@ class Watcher extends Thread
 			try
 			{
 				long start = System.currentTimeMillis();
-				deleteIfPresent(targetCopy);
-				main.addText(" OK ", "key");
+				deleteIfPresent(targetCopy, target.getThrottle(false));
+				ResumableCopy.discard(targetCopy);
+				addResult(target, "OK", "key");
 				showSlowTime(start);
 			}
 			catch(IOException e)
 			{
-				main.addText(" ERROR ", "error");
-				errorState[0] = true;
-				e.printStackTrace();
-				if (debug) {
-					main.addText("\n" + e.toString() + "\n");
-				}
-				return true;
+				return deleteFailed(target, e);
 			}
 		}
 		return true;
 	}
 
-	private static void deleteIfPresent(Path file) throws IOException
+	private boolean deleteFailed(Target target, IOException e)
+	{
+		addResult(target, "ERROR", "error");
+		e.printStackTrace();
+		if (debug) {
+			main.addText("\n" + e.toString() + "\n");
+		}
+		return false;
+	}
+
+	private static void deleteIfPresent(Path file, Throttle throttle) throws IOException
 	{
+		throttle.acquireFile();
 		try
 		{
 			Files.delete(file);
@@ -0,0 +1,87 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.jupiter.api.Test;
+
+public class DigestTreeTest
+{
+	private static Path path(String path)
+	{
+		return Paths.get(path);
+	}
+
+	private static DigestTree tree()
+	{
+		DigestTree tree = new DigestTree();
+		tree.updateFile(path("a/b/one.txt"), 10, 1000);
+		tree.updateFile(path("a/b/two.txt"), 20, 2000);
+		tree.updateFile(path("a/c/three.txt"), 30, 3000);
+		tree.addFolder(path("empty"));
+		return tree;
+	}
+
+	@Test
+	void sameContentsSameDigest()
+	{
+		DigestTree source = tree(), target = tree();
+		assertEquals(source.getDigest(), target.getDigest());
+		DigestTree.Diff diff = DigestTree.diff(source, target, path(""));
+		assertTrue(diff.copies.isEmpty());
+		assertTrue(diff.deletes.isEmpty());
+	}
+
+	@Test
+	void diffOnlyReportsChangedPaths()
+	{
+		DigestTree source = tree(), target = tree();
+		source.updateFile(path("a/b/two.txt"), 21, 2500);
+		source.updateFile(path("a/new.txt"), 1, 1);
+		target.updateFile(path("a/c/extra.txt"), 1, 1);
+		target.remove(path("empty"));
+		assertNotEquals(source.getDigest(), target.getDigest());
+
+		DigestTree.Diff diff = DigestTree.diff(source, target, path(""));
+		assertEquals(3, diff.copies.size());
+		assertTrue(diff.copies.contains(path("a/b/two.txt")));
+		assertTrue(diff.copies.contains(path("a/new.txt")));
+		assertTrue(diff.copies.contains(path("empty")));
+		assertEquals(1, diff.deletes.size());
+		assertEquals(path("a/c/extra.txt"), diff.deletes.get(0));
+	}
+
+	@Test
+	void changeAndRevertRestoresDigest()
+	{
+		DigestTree tree = tree();
+		long before = tree.getDigest();
+		tree.updateFile(path("a/b/one.txt"), 11, 1000);
+		assertNotEquals(before, tree.getDigest());
+		tree.updateFile(path("a/b/one.txt"), 10, 1000);
+		assertEquals(before, tree.getDigest());
+	}
+
+	@Test
+	void removeRootEmptiesTree()
+	{
+		DigestTree tree = tree();
+		tree.remove(path("."));
+		assertEquals(0, tree.size());
+		assertEquals(new DigestTree().getDigest(), tree.getDigest());
+	}
+
+	@Test
+	void saveAndLoad() throws IOException
+	{
+		DigestTree tree = tree();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		tree.save(new DataOutputStream(bytes));
+		DigestTree loaded = new DigestTree();
+		loaded.load(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(tree.getDigest(), loaded.getDigest());
+		assertEquals(tree.size(), loaded.size());
+	}
+}
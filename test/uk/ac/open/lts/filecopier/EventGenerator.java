@@ -0,0 +1,192 @@
+package uk.ac.open.lts.filecopier;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import uk.ac.open.lts.filecopier.ActionQueue.Priority;
+
+/**
+ * Makes changes to a source folder like a developer would (bursts of saves,
+ * branch switches, renames) and adds the matching events to an action queue,
+ * as the watcher would. Uses a fixed seed so runs can be repeated.
+ */
+public class EventGenerator
+{
+	private final static int FOLDERS = 5;
+
+	private final Path source;
+	private final ActionQueue queue;
+	private final ActionQueue.Client client;
+	private final Random random;
+	private final List<Path> files = new ArrayList<Path>();
+	private int nextFile;
+
+	/**
+	 * @param source Source folder (should be empty)
+	 * @param queue Queue to add events to
+	 * @param client Client events are for
+	 * @param seed Random seed
+	 * @throws IOException Any error creating the initial folders
+	 */
+	public EventGenerator(Path source, ActionQueue queue, ActionQueue.Client client,
+		long seed) throws IOException
+	{
+		this.source = source;
+		this.queue = queue;
+		this.client = client;
+		this.random = new Random(seed);
+		for(int i = 0; i < FOLDERS; i++)
+		{
+			Files.createDirectories(source.resolve("f" + i));
+		}
+	}
+
+	/**
+	 * Creates a new file, as its own event.
+	 * @return Relative path of file
+	 * @throws IOException Any error
+	 */
+	public Path create() throws IOException
+	{
+		Path relative = Paths.get("f" + random.nextInt(FOLDERS), "file" + (nextFile++) + ".txt");
+		files.add(relative);
+		write(relative);
+		ActionQueue.Batch batch = queue.newBatch(client);
+		batch.copy(lookup(relative), Priority.INTERACTIVE);
+		queue.add(batch);
+		return relative;
+	}
+
+	/**
+	 * Saves the same file several times in a row, each as a separate event.
+	 * @param saves Number of saves
+	 * @return Relative path of file
+	 * @throws IOException Any error
+	 */
+	public Path editBurst(int saves) throws IOException
+	{
+		if(files.isEmpty())
+		{
+			create();
+		}
+		Path relative = files.get(random.nextInt(files.size()));
+		for(int i = 0; i < saves; i++)
+		{
+			write(relative);
+			ActionQueue.Batch batch = queue.newBatch(client);
+			batch.copy(lookup(relative), Priority.INTERACTIVE);
+			queue.add(batch);
+		}
+		return relative;
+	}
+
+	/**
+	 * Changes, creates and deletes many files at once, in one batch.
+	 * @param count Number of files to touch
+	 * @throws IOException Any error
+	 */
+	public void branchSwitch(int count) throws IOException
+	{
+		ActionQueue.Batch batch = queue.newBatch(client);
+		for(int i = 0; i < count; i++)
+		{
+			int choice = random.nextInt(3);
+			if(choice == 0 || files.isEmpty())
+			{
+				Path relative = Paths.get("f" + random.nextInt(FOLDERS), "file" + (nextFile++) + ".txt");
+				files.add(relative);
+				write(relative);
+				batch.copy(lookup(relative), Priority.INTERACTIVE);
+			}
+			else if(choice == 1)
+			{
+				Path relative = files.get(random.nextInt(files.size()));
+				write(relative);
+				batch.copy(lookup(relative), Priority.INTERACTIVE);
+			}
+			else
+			{
+				Path relative = files.remove(random.nextInt(files.size()));
+				Files.delete(source.resolve(relative));
+				batch.delete(lookup(relative));
+			}
+		}
+		queue.add(batch);
+	}
+
+	/**
+	 * Renames a file, which arrives as a delete and a create.
+	 * @throws IOException Any error
+	 */
+	public void rename() throws IOException
+	{
+		if(files.isEmpty())
+		{
+			create();
+		}
+		Path from = files.remove(random.nextInt(files.size()));
+		Path to = Paths.get("f" + random.nextInt(FOLDERS), "file" + (nextFile++) + ".txt");
+		Files.move(source.resolve(from), source.resolve(to));
+		files.add(to);
+		ActionQueue.Batch batch = queue.newBatch(client);
+		batch.delete(lookup(from));
+		batch.copy(lookup(to), Priority.INTERACTIVE);
+		queue.add(batch);
+	}
+
+	/**
+	 * Simulates an overflow, where the watcher loses track and recopies
+	 * everything.
+	 */
+	public void overflow()
+	{
+		ActionQueue.Batch batch = queue.newBatch(client);
+		batch.copy(client.getPaths(), Priority.BULK);
+		queue.add(batch);
+	}
+
+	/**
+	 * Makes one randomly chosen change, mostly saves.
+	 * @throws IOException Any error
+	 */
+	public void step() throws IOException
+	{
+		int choice = random.nextInt(100);
+		if(choice < 50)
+		{
+			editBurst(1 + random.nextInt(5));
+		}
+		else if(choice < 75)
+		{
+			create();
+		}
+		else if(choice < 90)
+		{
+			rename();
+		}
+		else if(choice < 99)
+		{
+			branchSwitch(10 + random.nextInt(30));
+		}
+		else
+		{
+			overflow();
+		}
+	}
+
+	private PathNode lookup(Path relative)
+	{
+		return client.getPaths().lookup(relative);
+	}
+
+	private void write(Path relative) throws IOException
+	{
+		byte[] data = new byte[random.nextInt(4096)];
+		random.nextBytes(data);
+		Files.write(source.resolve(relative),
+			(relative + "\n").getBytes(StandardCharsets.UTF_8));
+		Files.write(source.resolve(relative), data, StandardOpenOption.APPEND);
+	}
+}
@@ -0,0 +1,69 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FanOutTest
+{
+	@TempDir
+	Path temp;
+
+	private static Throttle throttle()
+	{
+		return Throttle.create(new Options((Options)null), Options.BULK_BYTES,
+			Options.BULK_FILES, null);
+	}
+
+	@Test
+	void copiesToEveryTarget() throws IOException
+	{
+		byte[] data = new byte[300 * 1024 + 7];
+		new Random(1).nextBytes(data);
+		Path[] targets = { temp.resolve("a"), temp.resolve("b") };
+		IOException[] errors = FanOut.copy(new ByteArrayInputStream(data), targets,
+			new Throttle[] { throttle(), throttle() }, false);
+		for(int i = 0; i < targets.length; i++)
+		{
+			assertNull(errors[i]);
+			assertArrayEquals(data, Files.readAllBytes(targets[i]));
+		}
+	}
+
+	@Test
+	void readErrorDeletesPartialTargets() throws IOException
+	{
+		// Fails after two buffers' worth
+		InputStream in = new InputStream()
+		{
+			private int left = 2;
+
+			@Override
+			public int read() throws IOException
+			{
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int read(byte[] buffer) throws IOException
+			{
+				if(left-- == 0)
+				{
+					throw new IOException("Read failed");
+				}
+				return buffer.length;
+			}
+		};
+		Path[] targets = { temp.resolve("a"), temp.resolve("b") };
+		IOException e = assertThrows(IOException.class, () -> FanOut.copy(in, targets,
+			new Throttle[] { throttle(), throttle() }, false));
+		assertEquals("Read failed", e.getMessage());
+		assertFalse(Files.exists(targets[0]));
+		assertFalse(Files.exists(targets[1]));
+	}
+}
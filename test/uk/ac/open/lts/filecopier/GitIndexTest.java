@@ -0,0 +1,65 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class GitIndexTest
+{
+	@TempDir
+	Path temp;
+
+	private static void entry(DataOutputStream out, String name, int mode, long size,
+		long modified) throws IOException
+	{
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		out.writeLong(0); // ctime
+		out.writeInt((int)(modified / 1000));
+		out.writeInt((int)(modified % 1000) * 1000000);
+		out.writeLong(0); // dev, ino
+		out.writeInt(mode);
+		out.writeLong(0); // uid, gid
+		out.writeInt((int)size);
+		out.write(new byte[20]);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+		int length = 62 + bytes.length;
+		out.write(new byte[((length + 8) & ~7) - length]);
+	}
+
+	@Test
+	void readsTrackedFiles() throws IOException
+	{
+		Files.createDirectory(temp.resolve(".git"));
+		Path file = temp.resolve(".git/index");
+		try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(file)))
+		{
+			out.writeBytes("DIRC");
+			out.writeInt(2);
+			out.writeInt(4);
+			entry(out, "a/b/one.txt", 0100644, 10, 1000);
+			entry(out, "link", 0120000, 7, 2000);
+			entry(out, "two.txt", 0100755, 20, 2000);
+			entry(out, "vendor/lib.php", 0100644, 30, 3000);
+		}
+		assertEquals(file, GitIndex.find(temp));
+
+		Path base = Paths.get("");
+		DigestTree expected = new DigestTree();
+		expected.updateFile(base.resolve("a/b/one.txt"), 10, 1000);
+		expected.updateFile(base.resolve("two.txt"), 20, 2000);
+		DigestTree index = GitIndex.read(file, base);
+		assertEquals(expected.getDigest(), index.getDigest());
+	}
+
+	@Test
+	void notAWorkingCopy()
+	{
+		assertNull(GitIndex.find(temp));
+	}
+}
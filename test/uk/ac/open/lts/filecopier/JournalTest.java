@@ -0,0 +1,52 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JournalTest
+{
+	@TempDir
+	Path temp;
+
+	@Test
+	void writeAndRead() throws IOException
+	{
+		Journal.start(temp);
+		try
+		{
+			assertTrue(Journal.isEnabled());
+			Events.end(Events.start(Events.Type.COPY), 2, Paths.get("lib/weblib.php"),
+				"a", 1234);
+			Events.record(Events.Type.WATCH_EVENT, 2, null, "OVERFLOW");
+		}
+		finally
+		{
+			Journal.stop();
+		}
+		assertFalse(Journal.isEnabled());
+		assertNull(Events.start(Events.Type.COPY));
+
+		// Output is the same whatever the default locale
+		StringWriter out = new StringWriter();
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		try
+		{
+			JournalReader.read(temp.resolve(Journal.FILE_NAME), out);
+		}
+		finally
+		{
+			Locale.setDefault(locale);
+		}
+		String[] lines = out.toString().split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].matches(".* COPY 2 [0-9.]+ms 1234 lib/weblib.php \\(a\\)"), lines[0]);
+		assertTrue(lines[1].matches(".* WATCH_EVENT 2 [0-9.]+ms 0  \\(OVERFLOW\\)"), lines[1]);
+	}
+}
@@ -0,0 +1,25 @@
+package uk.ac.open.lts.filecopier;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock for tests which only moves when told to.
+ */
+public class ManualClock implements Clock
+{
+	private AtomicLong time = new AtomicLong(1000000);
+
+	@Override
+	public long currentTimeMillis()
+	{
+		return time.get();
+	}
+
+	/**
+	 * @param ms Time to move on by
+	 */
+	public void advance(long ms)
+	{
+		time.addAndGet(ms);
+	}
+}
@@ -0,0 +1,75 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.*;
+
+import org.junit.jupiter.api.Test;
+
+public class PathNodeTest
+{
+	private static Path path(String path)
+	{
+		return Paths.get(path);
+	}
+
+	@Test
+	void internSharesNodes()
+	{
+		PathNode root = PathNode.createRoot(FileSystems.getDefault());
+		PathNode folder = root.intern(path("a/b"));
+		assertSame(folder, root.intern(path("a/b")));
+		assertSame(folder, root.lookup(path("a/b")));
+		assertSame(root, root.lookup(path(".")));
+		assertSame(root, root.lookup(path("")));
+	}
+
+	@Test
+	void lookupDoesNotAddToTree()
+	{
+		PathNode root = PathNode.createRoot(FileSystems.getDefault());
+		PathNode folder = root.intern(path("a"));
+		PathNode file = folder.lookup(path("b/c.txt"));
+		assertEquals(path("a/b/c.txt"), file.toPath());
+		assertNotSame(root.lookup(path("a/b")), root.lookup(path("a/b")));
+		assertEquals(root.lookup(path("a/b")), root.lookup(path("a/b")));
+		assertEquals(root.lookup(path("a/b")).hashCode(), root.lookup(path("a/b")).hashCode());
+	}
+
+	@Test
+	void contains()
+	{
+		PathNode root = PathNode.createRoot(FileSystems.getDefault());
+		PathNode a = root.intern(path("a"));
+		assertTrue(root.contains(a));
+		assertTrue(a.contains(a));
+		assertTrue(a.contains(root.lookup(path("a/b/c"))));
+		assertFalse(a.contains(root));
+		assertFalse(a.contains(root.lookup(path("ab"))));
+		assertFalse(root.lookup(path("x/y")).contains(root.lookup(path("x/z/y"))));
+	}
+
+	@Test
+	void releasedNodesStillWork()
+	{
+		PathNode root = PathNode.createRoot(FileSystems.getDefault());
+		PathNode old = root.intern(path("a/b"));
+		root.intern(path("a")).lookup(path("b")).release();
+		old.release();
+		PathNode replacement = root.intern(path("a/b"));
+		assertNotSame(old, replacement);
+		assertEquals(old, replacement);
+		assertTrue(root.lookup(path("a")).contains(old));
+		assertEquals(path("a/b"), old.toPath());
+	}
+
+	@Test
+	void pathsUseTreeFileSystem()
+	{
+		SlowFileSystem fileSystem = new SlowFileSystem(0, 0, 1);
+		PathNode root = PathNode.createRoot(fileSystem);
+		assertSame(fileSystem, root.toPath().getFileSystem());
+		assertSame(fileSystem, root.lookup(path("a/b")).toPath().getFileSystem());
+		assertEquals("a/b", root.lookup(path("a/b")).toString());
+	}
+}
@@ -0,0 +1,67 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+
+import org.junit.jupiter.api.Test;
+
+public class SettingsTest
+{
+	private static Settings parse(String text) throws IOException
+	{
+		return new Settings(new BufferedReader(new StringReader(text)));
+	}
+
+	@Test
+	void mappingsAndDebug() throws IOException
+	{
+		Settings settings = parse("debug => true\n# comment\n\nc:\\source => \\\\server\\target\n");
+		assertTrue(settings.isDebug());
+		assertEquals(1, settings.getMappings().size());
+		assertEquals("c:\\source", settings.getMappings().get(0).getSource());
+		assertEquals("\\\\server\\target", settings.getMappings().get(0).getTarget());
+		assertEquals(4, settings.getMappings().get(0).getIndex());
+		assertTrue(settings.getProblems().isEmpty());
+	}
+
+	@Test
+	void indentedOptionsApplyToPreviousMapping() throws IOException
+	{
+		Settings settings = parse("bulk-bytes => 2M\n/a => /b\n  bulk-files => 50\n/c => /d\n");
+		Options first = settings.getMappings().get(0).getOptions();
+		Options second = settings.getMappings().get(1).getOptions();
+		assertEquals("50", first.getOwn(Options.BULK_FILES));
+		assertNull(second.getOwn(Options.BULK_FILES));
+		assertEquals("2M", second.get(Options.BULK_BYTES));
+		assertNull(second.getOwn(Options.BULK_BYTES));
+	}
+
+	@Test
+	void badLines() throws IOException
+	{
+		Settings settings = parse("  bulk-bytes => 1\nnonsense\nbulk-bytes => lots\n");
+		assertEquals(3, settings.getProblems().size());
+		assertTrue(settings.getMappings().isEmpty());
+	}
+
+	@Test
+	void parseSize()
+	{
+		assertEquals(100, Options.parseSize("100"));
+		assertEquals(512 * 1024, Options.parseSize("512k"));
+		assertEquals(2 * 1024 * 1024, Options.parseSize("2M"));
+		assertThrows(IllegalArgumentException.class, () -> Options.parseSize("-1"));
+		assertThrows(IllegalArgumentException.class, () -> Options.parseSize("M"));
+	}
+
+	@Test
+	void controlPort() throws IOException
+	{
+		assertEquals(8080, Options.parsePort("8080"));
+		assertThrows(IllegalArgumentException.class, () -> Options.parsePort("8k"));
+		assertThrows(IllegalArgumentException.class, () -> Options.parsePort("65536"));
+		Settings settings = parse("control-port => 8k\ncontrol-port => 70000\n");
+		assertEquals(2, settings.getProblems().size());
+	}
+}
@@ -0,0 +1,765 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.ac.open.lts.filecopier.ActionQueue.Priority;
+
+/**
+ * Runs the action queue and real watchers against generated events and a slow
+ * target file system, on a test clock, without the UI or real file watching.
+ */
+public class SimulationTest
+{
+	@TempDir
+	Path temp;
+
+	private String oldHome;
+
+	@BeforeEach
+	void setHome() throws IOException
+	{
+		// Watchers keep state and checkpoints in the home folder
+		oldHome = System.getProperty("user.home");
+		System.setProperty("user.home", Files.createDirectory(temp.resolve("home")).toString());
+	}
+
+	@AfterEach
+	void restoreHome()
+	{
+		System.setProperty("user.home", oldHome);
+	}
+
+	/**
+	 * Handler that records whether the queue reported an error.
+	 */
+	private static class ErrorHandler implements ActionQueue.Handler
+	{
+		private volatile boolean error;
+
+		@Override
+		public void markBusy()
+		{
+		}
+
+		@Override
+		public void markIdle()
+		{
+		}
+
+		@Override
+		public void markError()
+		{
+			error = true;
+		}
+
+		boolean hadError()
+		{
+			return error;
+		}
+	}
+
+	/**
+	 * Client which mirrors the source folder to a target, one action at a time.
+	 */
+	private static class SimClient implements ActionQueue.Client
+	{
+		private final Path source, target;
+		private final PathNode paths = PathNode.createRoot(FileSystems.getDefault());
+		private final List<Path> order = Collections.synchronizedList(new ArrayList<Path>());
+		private final List<Path> retried = new ArrayList<Path>();
+		private final Set<Path> locked = Collections.synchronizedSet(new HashSet<Path>());
+		private final Set<Path> partial = Collections.synchronizedSet(new HashSet<Path>());
+		private final Set<Path> broken = Collections.synchronizedSet(new HashSet<Path>());
+		private final List<Path> gaveUp = Collections.synchronizedList(new ArrayList<Path>());
+		private final Set<Path> different = Collections.synchronizedSet(new HashSet<Path>());
+		private ActionQueue queue;
+
+		SimClient(Path source, Path target)
+		{
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		public int getNum()
+		{
+			return 1;
+		}
+
+		@Override
+		public PathNode getPaths()
+		{
+			return paths;
+		}
+
+		@Override
+		public ActionQueue.Copy resumeCopy(Path path, Target only)
+		{
+			return startCopy(path, only);
+		}
+
+		@Override
+		public ActionQueue.Copy startCopy(final Path path, Target only)
+		{
+			if(broken.contains(path))
+			{
+				throw new IllegalStateException("Broken " + path);
+			}
+			return new ActionQueue.Copy()
+			{
+				private boolean finished;
+				private ActionQueue.Retry retry;
+
+				@Override
+				public boolean next()
+				{
+					if(locked.contains(path))
+					{
+						retry = ActionQueue.Retry.LOCKED;
+						return true;
+					}
+					if(partial.contains(path))
+					{
+						retry = ActionQueue.Retry.PARTIAL;
+						return true;
+					}
+					retry = null;
+					finished = true;
+					try
+					{
+						deleteTree(target.resolve(path));
+						copyTree(source.resolve(path), target.resolve(path));
+						return true;
+					}
+					catch(IOException e)
+					{
+						return false;
+					}
+					finally
+					{
+						synchronized(order)
+						{
+							order.add(path);
+							order.notifyAll();
+						}
+					}
+				}
+
+				@Override
+				public boolean isFinished()
+				{
+					return finished;
+				}
+
+				@Override
+				public ActionQueue.Retry getRetry()
+				{
+					// The queue asks just before it puts the action back
+					if(retry != null)
+					{
+						synchronized(retried)
+						{
+							retried.add(path);
+							retried.notifyAll();
+						}
+					}
+					return retry;
+				}
+
+				@Override
+				public void giveUp()
+				{
+					gaveUp.add(path);
+				}
+			};
+		}
+
+		@Override
+		public boolean delete(Path path, Target only)
+		{
+			try
+			{
+				deleteTree(target.resolve(path));
+				return true;
+			}
+			catch(IOException e)
+			{
+				return false;
+			}
+		}
+
+		@Override
+		public boolean checkSync()
+		{
+			// Queue copies for anything marked as different, as a check would
+			synchronized(different)
+			{
+				for(Path path : different)
+				{
+					queue.copy(this, path);
+				}
+				different.clear();
+			}
+			return true;
+		}
+
+		int count(Path path)
+		{
+			return count(order, path);
+		}
+
+		private static int count(List<Path> list, Path path)
+		{
+			int count = 0;
+			synchronized(list)
+			{
+				for(Path done : list)
+				{
+					if(done.equals(path))
+					{
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Waits until a path has been copied a number of times.
+		 * @param path Relative path
+		 * @param times Number of copies
+		 * @param timeout Timeout in ms
+		 */
+		void waitForCount(Path path, int times, long timeout) throws InterruptedException
+		{
+			waitFor(order, path, times, timeout);
+		}
+
+		/**
+		 * Waits until the queue has put back a path to retry later.
+		 * @param path Relative path
+		 * @param timeout Timeout in ms
+		 */
+		void waitForRetry(Path path, long timeout) throws InterruptedException
+		{
+			waitFor(retried, path, 1, timeout);
+		}
+
+		private static void waitFor(List<Path> list, Path path, int times, long timeout)
+			throws InterruptedException
+		{
+			long end = System.currentTimeMillis() + timeout;
+			synchronized(list)
+			{
+				while(count(list, path) < times)
+				{
+					long left = end - System.currentTimeMillis();
+					assertTrue(left > 0, "Timed out waiting for " + path);
+					list.wait(left);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the clock on until everything queued has been done, including
+	 * retries and anything queued by earlier actions.
+	 * @param queue Queue
+	 * @param clock Queue's clock
+	 */
+	private static void drain(ActionQueue queue, ManualClock clock) throws InterruptedException
+	{
+		for(int i = 0; i < 3000; i++)
+		{
+			long ticket = queue.getLastTicket();
+			if(queue.waitForTicket(ticket, 20) && ticket == queue.getLastTicket())
+			{
+				return;
+			}
+			clock.advance(1000);
+			queue.wake();
+		}
+		fail("Queue did not finish");
+	}
+
+	/**
+	 * Creates files in a source folder.
+	 * @param source Source folder
+	 * @param folders Number of subfolders
+	 * @param files Number of files in each
+	 */
+	private static void createFiles(Path source, int folders, int files) throws IOException
+	{
+		for(int i = 0; i < folders; i++)
+		{
+			Path folder = Files.createDirectory(source.resolve("f" + i));
+			for(int j = 0; j < files; j++)
+			{
+				Files.write(folder.resolve("file" + j + ".txt"), new byte[] { (byte)i, (byte)j });
+			}
+		}
+	}
+
+	private static void copyTree(Path from, final Path to) throws IOException
+	{
+		if(!Files.exists(from))
+		{
+			return;
+		}
+		if(!Files.isDirectory(from))
+		{
+			Files.createDirectories(to.getParent());
+			Files.copy(from, to);
+			return;
+		}
+		final Path root = from;
+		Files.walkFileTree(from, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+				throws IOException
+			{
+				Files.createDirectories(to.resolve(root.relativize(dir)));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				throws IOException
+			{
+				Files.copy(file, to.resolve(root.relativize(file)));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static void deleteTree(Path path) throws IOException
+	{
+		if(!Files.exists(path))
+		{
+			return;
+		}
+		if(Files.isDirectory(path))
+		{
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(path))
+			{
+				for(Path child : stream)
+				{
+					deleteTree(child);
+				}
+			}
+		}
+		Files.delete(path);
+	}
+
+	private static Map<String, String> list(final Path root) throws IOException
+	{
+		final Map<String, String> result = new TreeMap<String, String>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				throws IOException
+			{
+				result.put(root.relativize(file).toString(),
+					Arrays.toString(Files.readAllBytes(file)));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return result;
+	}
+
+	@Test
+	void editBurstCopiesOnce() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path target = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		ErrorHandler handler = new ErrorHandler();
+		ActionQueue queue = new ActionQueue(handler, clock);
+		SimClient client = new SimClient(source, target);
+		EventGenerator generator = new EventGenerator(source, queue, client, 1);
+
+		Path file = generator.editBurst(20);
+		// Nothing happens until the delay has passed
+		assertFalse(queue.waitForTicket(queue.getLastTicket(), 200));
+		assertEquals(0, client.count(file));
+
+		clock.advance(1000);
+		queue.wake();
+		assertTrue(queue.waitForTicket(queue.getLastTicket(), 5000));
+		assertEquals(1, client.count(file));
+		assertEquals(list(source), list(target));
+	}
+
+	@Test
+	void interactiveBeforeBulk() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path target = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		ErrorHandler handler = new ErrorHandler();
+		ActionQueue queue = new ActionQueue(handler, clock);
+		SimClient client = new SimClient(source, target);
+		for(int i = 0; i < 10; i++)
+		{
+			Path file = source.resolve("bulk" + i + ".dat");
+			Files.write(file, new byte[] { (byte)i });
+			queue.copy(client, source.relativize(file));
+		}
+		Files.write(source.resolve("edited.txt"), new byte[] { 1 });
+		ActionQueue.Batch batch = queue.newBatch(client);
+		batch.copy(client.getPaths().lookup(Paths.get("edited.txt")), Priority.INTERACTIVE);
+		queue.add(batch);
+
+		clock.advance(1000);
+		queue.wake();
+		assertTrue(queue.waitForTicket(queue.getLastTicket(), 5000));
+		assertEquals(Paths.get("edited.txt"), client.order.get(0));
+		assertEquals(11, client.order.size());
+	}
+
+	@Test
+	void waitForTicket() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path target = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		ErrorHandler handler = new ErrorHandler();
+		ActionQueue queue = new ActionQueue(handler, clock);
+		SimClient client = new SimClient(source, target);
+		EventGenerator generator = new EventGenerator(source, queue, client, 5);
+
+		Path file = generator.create();
+		long ticket = queue.getLastTicket();
+		assertFalse(queue.waitForTicket(ticket, 100));
+		assertEquals(1, queue.getDepth());
+
+		// A later change to the same file replaces the queued copy, so waiting
+		// for the earlier ticket waits for that one
+		generator.rename();
+		clock.advance(1000);
+		queue.wake();
+		assertTrue(queue.waitForTicket(ticket, 5000));
+		assertEquals(0, client.count(file));
+		assertTrue(queue.waitForTicket(queue.getLastTicket(), 5000));
+		assertEquals(0, queue.getDepth());
+		assertEquals(list(source), list(target));
+	}
+
+	@Test
+	void waitForTicketIncludesSpawnedActions() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path target = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		ErrorHandler handler = new ErrorHandler();
+		ActionQueue queue = new ActionQueue(handler, clock);
+		SimClient client = new SimClient(source, target);
+		client.queue = queue;
+		Path file = Paths.get("different.txt");
+		Files.write(source.resolve(file), new byte[] { 1 });
+		client.different.add(file);
+
+		// Waiting for the check also waits for the copy it queues
+		queue.check(client);
+		long ticket = queue.getLastTicket();
+		boolean done = false;
+		for(int i = 0; i < 100 && !done; i++)
+		{
+			clock.advance(1000);
+			queue.wake();
+			done = queue.waitForTicket(ticket, 20);
+		}
+		assertTrue(done);
+		assertEquals(1, client.count(file));
+		assertEquals(0, queue.getDepth());
+	}
+
+	@Test
+	void lockedFileRetriedLater() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path target = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		ErrorHandler handler = new ErrorHandler();
+		ActionQueue queue = new ActionQueue(handler, clock);
+		SimClient client = new SimClient(source, target);
+		Path locked = Paths.get("locked.txt"), other = Paths.get("other.txt"),
+			stuck = Paths.get("stuck.txt");
+		Files.write(source.resolve(locked), new byte[] { 1 });
+		Files.write(source.resolve(other), new byte[] { 2 });
+		Files.write(source.resolve(stuck), new byte[] { 3 });
+		client.locked.add(locked);
+		client.locked.add(stuck);
+		queue.copy(client, locked);
+		queue.copy(client, stuck);
+		clock.advance(1000);
+		queue.wake();
+
+		// Other work carries on while the files wait to be retried
+		queue.copy(client, other);
+		clock.advance(200);
+		queue.wake();
+		client.waitForCount(other, 1, 5000);
+		assertEquals(0, client.count(locked));
+
+		// Once unlocked, the file is copied; the other one is given up on
+		client.locked.remove(locked);
+		drain(queue, clock);
+		assertEquals(1, client.count(locked));
+		assertEquals(Arrays.asList(stuck), client.gaveUp);
+		assertTrue(handler.hadError());
+	}
+
+	@Test
+	void retryDoesNotHoldUpLaterChanges() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path target = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		ErrorHandler handler = new ErrorHandler();
+		ActionQueue queue = new ActionQueue(handler, clock);
+		SimClient client = new SimClient(source, target);
+		Path folder = Paths.get("folder"), file = Paths.get("folder", "edited.txt");
+		Files.createDirectory(source.resolve(folder));
+		Files.write(source.resolve(file), new byte[] { 1 });
+		client.partial.add(folder);
+		queue.copy(client, folder);
+		clock.advance(1000);
+		queue.wake();
+		client.waitForRetry(folder, 5000);
+
+		// The folder copy is waiting to try again, but an edit inside it
+		// doesn't wait for that
+		ActionQueue.Batch batch = queue.newBatch(client);
+		batch.copy(client.getPaths().lookup(file), Priority.INTERACTIVE);
+		queue.add(batch);
+		clock.advance(200);
+		queue.wake();
+		client.waitForCount(file, 1, 5000);
+		assertEquals(0, client.count(folder));
+
+		client.partial.remove(folder);
+		drain(queue, clock);
+		assertEquals(1, client.count(folder));
+		assertEquals(list(source), list(target));
+	}
+
+	@Test
+	void failedActionDoesNotStopQueue() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path target = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		ErrorHandler handler = new ErrorHandler();
+		ActionQueue queue = new ActionQueue(handler, clock);
+		SimClient client = new SimClient(source, target);
+		Path broken = Paths.get("broken.txt"), other = Paths.get("other.txt");
+		Files.write(source.resolve(broken), new byte[] { 1 });
+		Files.write(source.resolve(other), new byte[] { 2 });
+		client.broken.add(broken);
+		queue.copy(client, broken);
+		queue.copy(client, other);
+		clock.advance(1000);
+		queue.wake();
+
+		assertTrue(queue.waitForTicket(queue.getLastTicket(), 5000));
+		assertEquals(Arrays.asList(other), client.order);
+		assertEquals(0, queue.getDepth());
+		assertTrue(handler.hadError());
+	}
+
+	@Test
+	void watcherCopiesFolderInChunks() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path realTarget = Files.createDirectory(temp.resolve("target"));
+		createFiles(source, 3, 40);
+		Files.write(realTarget.resolve("old.txt"), new byte[] { 1 });
+		ManualClock clock = new ManualClock();
+		SlowFileSystem slow = new SlowFileSystem(10, 0, 1);
+		slow.setClock(clock);
+		TestOwner owner = new TestOwner(clock);
+		Watcher watcher = owner.watch(source, slow.wrap(realTarget));
+
+		// Each file takes at least 10ms on the target, so the copy needs
+		// several chunks
+		watcher.wipe();
+		drain(owner.getQueue(), clock);
+		assertEquals(list(source), list(realTarget));
+		assertTrue(owner.getOutput().split(" \\.\\.\\.\n").length > 2, owner.getOutput());
+		assertTrue(CopyCheckpoint.list(source).isEmpty());
+		assertFalse(owner.hadError());
+	}
+
+	@Test
+	void watcherResumesFolderCopy() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path realTarget = Files.createDirectory(temp.resolve("target"));
+		createFiles(source, 3, 40);
+		ManualClock clock = new ManualClock();
+		SlowFileSystem slow = new SlowFileSystem(10, 0, 1);
+		slow.setClock(clock);
+		TestOwner owner = new TestOwner(clock);
+
+		// Copy one chunk and then stop, as if the application had quit
+		ActionQueue.Copy copy = owner.watch(source, slow.wrap(realTarget))
+			.startCopy(Paths.get(""), null);
+		assertTrue(copy.next());
+		assertFalse(copy.isFinished());
+		assertEquals(1, CopyCheckpoint.list(source).size());
+		int copied = list(realTarget).size();
+		assertTrue(copied > 0 && copied < 120, copied + " files");
+
+		// Next time, the copy carries on from the checkpoint without deleting
+		// the files already copied
+		int before = owner.getOutput().length();
+		Watcher watcher = owner.watch(source, slow.wrap(realTarget));
+		watcher.resumeCopies();
+		drain(owner.getQueue(), clock);
+		assertEquals(list(source), list(realTarget));
+		String output = owner.getOutput().substring(before);
+		assertTrue(output.contains(" - Resume copy"), output);
+		assertFalse(output.contains("Delete"), output);
+		assertTrue(CopyCheckpoint.list(source).isEmpty());
+	}
+
+	@Test
+	void watcherWipeReplacesResume() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path realTarget = Files.createDirectory(temp.resolve("target"));
+		createFiles(source, 3, 40);
+		ManualClock clock = new ManualClock();
+		SlowFileSystem slow = new SlowFileSystem(10, 0, 1);
+		slow.setClock(clock);
+		TestOwner owner = new TestOwner(clock);
+
+		ActionQueue.Copy copy = owner.watch(source, slow.wrap(realTarget))
+			.startCopy(Paths.get(""), null);
+		assertTrue(copy.next());
+		assertFalse(copy.isFinished());
+		Files.write(realTarget.resolve("stale.txt"), new byte[] { 1 });
+
+		// A wipe queued behind the resume still deletes everything first
+		Watcher watcher = owner.watch(source, slow.wrap(realTarget));
+		watcher.resumeCopies();
+		watcher.wipe();
+		drain(owner.getQueue(), clock);
+		assertFalse(Files.exists(realTarget.resolve("stale.txt")));
+		assertEquals(list(source), list(realTarget));
+		assertTrue(CopyCheckpoint.list(source).isEmpty());
+	}
+
+	@Test
+	void watcherSwapsStagingAfterRetry() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path realTarget = Files.createDirectory(temp.resolve("target"));
+		createFiles(source, 3, 40);
+		Files.write(realTarget.resolve("old.txt"), new byte[] { 1 });
+		ManualClock clock = new ManualClock();
+		SlowFileSystem slow = new SlowFileSystem(10, 0, 1);
+		slow.setClock(clock);
+		TestOwner owner = new TestOwner(clock);
+		Options options = new Options((Options)null);
+		options.set(Options.RECOPY_MODE, Options.RECOPY_MODE_STAGED);
+		Watcher watcher = owner.watch(source, slow.wrap(realTarget), options);
+
+		// Files that go while the copy is part way through are retried
+		ActionQueue.Copy copy = watcher.startCopy(Paths.get(""), null);
+		assertTrue(copy.next());
+		assertFalse(copy.isFinished());
+		for(int i = 0; i < 3; i++)
+		{
+			Files.delete(source.resolve("f" + i + "/file9.txt"));
+		}
+		while(!copy.isFinished() && copy.getRetry() == null)
+		{
+			copy.next();
+		}
+		assertEquals(ActionQueue.Retry.PARTIAL, copy.getRetry());
+
+		// The old copy stays in place until the retry is done
+		assertTrue(Files.exists(realTarget.resolve("old.txt")));
+		assertTrue(copy.next());
+		assertTrue(copy.isFinished());
+		assertFalse(Files.exists(realTarget.resolve("old.txt")));
+
+		// A file deleted after it was copied is picked up by the check
+		drain(owner.getQueue(), clock);
+		assertEquals(list(source), list(realTarget));
+	}
+
+	@Test
+	void watcherRetriesFailedTarget() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path realTarget = Files.createDirectory(temp.resolve("target"));
+		Files.write(source.resolve("file.txt"), new byte[] { 1, 2, 3 });
+		ManualClock clock = new ManualClock();
+		SlowFileSystem slow = new SlowFileSystem(10, 1, 1);
+		slow.setClock(clock);
+		TestOwner owner = new TestOwner(clock);
+		Watcher watcher = owner.watch(source, slow.wrap(realTarget));
+
+		ActionQueue queue = owner.getQueue();
+		queue.copy(watcher, Paths.get("file.txt"));
+		for(int i = 0; i < 100 && !owner.getOutput().contains("RETRY"); i++)
+		{
+			clock.advance(1000);
+			queue.wake();
+			queue.waitForTicket(queue.getLastTicket(), 20);
+		}
+		assertTrue(owner.getOutput().contains("RETRY"), owner.getOutput());
+		assertFalse(Files.exists(realTarget.resolve("file.txt")));
+
+		// Once the target works again, the retry copies the file
+		slow.setFailureRate(0);
+		drain(queue, clock);
+		assertEquals(list(source), list(realTarget));
+		assertTrue(owner.getOutput().contains(" - Retry"), owner.getOutput());
+	}
+
+	@Test
+	void watcherConvergesOnSlowTarget() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Path realTarget = Files.createDirectory(temp.resolve("target"));
+		ManualClock clock = new ManualClock();
+		SlowFileSystem slow = new SlowFileSystem(5, 0.02, 2);
+		slow.setClock(clock);
+		TestOwner owner = new TestOwner(clock);
+		Watcher watcher = owner.watch(source, slow.wrap(realTarget));
+		ActionQueue queue = owner.getQueue();
+		EventGenerator generator = new EventGenerator(source, queue, watcher, 3);
+		Random random = new Random(4);
+
+		for(int i = 0; i < 100; i++)
+		{
+			generator.step();
+			clock.advance(random.nextInt(200));
+			queue.wake();
+		}
+		drain(queue, clock);
+
+		// Failed copies leave the target out of date until something recopies
+		slow.setFailureRate(0);
+		generator.overflow();
+		drain(queue, clock);
+		assertEquals(list(source), list(realTarget));
+		assertTrue(slow.getFailures() == 0 || owner.hadError());
+	}
+}
@@ -0,0 +1,580 @@
+package uk.ac.open.lts.filecopier;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File system for tests which wraps the default one, adding a delay to every
+ * operation (like a network share) and failing a proportion of writes.
+ */
+public class SlowFileSystem extends FileSystem
+{
+	private final FileSystem real = FileSystems.getDefault();
+	private final Provider provider = new Provider();
+	private final Random random;
+	private final AtomicInteger operations = new AtomicInteger(), failures = new AtomicInteger();
+	private volatile long latency;
+	private volatile double failureRate;
+	private volatile ManualClock clock;
+
+	/**
+	 * @param latency Delay for each operation in ms
+	 * @param failureRate Proportion of writes, deletes and folder creations
+	 *   that fail (0 to 1)
+	 * @param seed Random seed for failures
+	 */
+	public SlowFileSystem(long latency, double failureRate, long seed)
+	{
+		this.latency = latency;
+		this.failureRate = failureRate;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param latency Delay for each operation in ms
+	 */
+	public void setLatency(long latency)
+	{
+		this.latency = latency;
+	}
+
+	/**
+	 * @param failureRate Proportion of write operations that fail
+	 */
+	public void setFailureRate(double failureRate)
+	{
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * @param clock If set, operations move this clock on by the latency
+	 *   instead of sleeping
+	 */
+	public void setClock(ManualClock clock)
+	{
+		this.clock = clock;
+	}
+
+	/**
+	 * @return Number of operations so far
+	 */
+	public int getOperations()
+	{
+		return operations.get();
+	}
+
+	/**
+	 * @return Number of injected failures so far
+	 */
+	public int getFailures()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * @param path Path on the default file system
+	 * @return Same path on this file system
+	 */
+	public Path wrap(Path path)
+	{
+		return path == null ? null : new SlowPath(path);
+	}
+
+	private Path unwrap(Path path)
+	{
+		if(path instanceof SlowPath)
+		{
+			return ((SlowPath)path).real;
+		}
+		return real.getPath(path.toString());
+	}
+
+	private void operation(boolean write) throws IOException
+	{
+		operations.incrementAndGet();
+		if(latency > 0 && clock != null)
+		{
+			clock.advance(latency);
+		}
+		else if(latency > 0)
+		{
+			try
+			{
+				Thread.sleep(latency);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(write && failureRate > 0)
+		{
+			boolean fail;
+			synchronized(random)
+			{
+				fail = random.nextDouble() < failureRate;
+			}
+			if(fail)
+			{
+				failures.incrementAndGet();
+				throw new IOException("Injected failure");
+			}
+		}
+	}
+
+	@Override
+	public FileSystemProvider provider()
+	{
+		return provider;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+	}
+
+	@Override
+	public boolean isOpen()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isReadOnly()
+	{
+		return false;
+	}
+
+	@Override
+	public String getSeparator()
+	{
+		return real.getSeparator();
+	}
+
+	@Override
+	public Iterable<Path> getRootDirectories()
+	{
+		List<Path> roots = new ArrayList<Path>();
+		for(Path root : real.getRootDirectories())
+		{
+			roots.add(wrap(root));
+		}
+		return roots;
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores()
+	{
+		return real.getFileStores();
+	}
+
+	@Override
+	public Set<String> supportedFileAttributeViews()
+	{
+		return real.supportedFileAttributeViews();
+	}
+
+	@Override
+	public Path getPath(String first, String... more)
+	{
+		return wrap(real.getPath(first, more));
+	}
+
+	@Override
+	public PathMatcher getPathMatcher(String syntaxAndPattern)
+	{
+		return real.getPathMatcher(syntaxAndPattern);
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService()
+	{
+		return real.getUserPrincipalLookupService();
+	}
+
+	@Override
+	public WatchService newWatchService() throws IOException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Path which delegates to a real path.
+	 */
+	private class SlowPath implements Path
+	{
+		private final Path real;
+
+		SlowPath(Path real)
+		{
+			this.real = real;
+		}
+
+		@Override
+		public FileSystem getFileSystem()
+		{
+			return SlowFileSystem.this;
+		}
+
+		@Override
+		public boolean isAbsolute()
+		{
+			return real.isAbsolute();
+		}
+
+		@Override
+		public Path getRoot()
+		{
+			return wrap(real.getRoot());
+		}
+
+		@Override
+		public Path getFileName()
+		{
+			return wrap(real.getFileName());
+		}
+
+		@Override
+		public Path getParent()
+		{
+			return wrap(real.getParent());
+		}
+
+		@Override
+		public int getNameCount()
+		{
+			return real.getNameCount();
+		}
+
+		@Override
+		public Path getName(int index)
+		{
+			return wrap(real.getName(index));
+		}
+
+		@Override
+		public Path subpath(int beginIndex, int endIndex)
+		{
+			return wrap(real.subpath(beginIndex, endIndex));
+		}
+
+		@Override
+		public boolean startsWith(Path other)
+		{
+			return real.startsWith(unwrap(other));
+		}
+
+		@Override
+		public boolean startsWith(String other)
+		{
+			return real.startsWith(other);
+		}
+
+		@Override
+		public boolean endsWith(Path other)
+		{
+			return real.endsWith(unwrap(other));
+		}
+
+		@Override
+		public boolean endsWith(String other)
+		{
+			return real.endsWith(other);
+		}
+
+		@Override
+		public Path normalize()
+		{
+			return wrap(real.normalize());
+		}
+
+		@Override
+		public Path resolve(Path other)
+		{
+			return wrap(real.resolve(unwrap(other)));
+		}
+
+		@Override
+		public Path resolve(String other)
+		{
+			return wrap(real.resolve(other));
+		}
+
+		@Override
+		public Path resolveSibling(Path other)
+		{
+			return wrap(real.resolveSibling(unwrap(other)));
+		}
+
+		@Override
+		public Path resolveSibling(String other)
+		{
+			return wrap(real.resolveSibling(other));
+		}
+
+		@Override
+		public Path relativize(Path other)
+		{
+			return wrap(real.relativize(unwrap(other)));
+		}
+
+		@Override
+		public URI toUri()
+		{
+			return real.toUri();
+		}
+
+		@Override
+		public Path toAbsolutePath()
+		{
+			return wrap(real.toAbsolutePath());
+		}
+
+		@Override
+		public Path toRealPath(LinkOption... options) throws IOException
+		{
+			operation(false);
+			return wrap(real.toRealPath(options));
+		}
+
+		@Override
+		public java.io.File toFile()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events,
+			WatchEvent.Modifier... modifiers) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events)
+			throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<Path> iterator()
+		{
+			List<Path> names = new ArrayList<Path>();
+			for(Path name : real)
+			{
+				names.add(wrap(name));
+			}
+			return names.iterator();
+		}
+
+		@Override
+		public int compareTo(Path other)
+		{
+			return real.compareTo(unwrap(other));
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof SlowPath && ((SlowPath)obj).real.equals(real);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return real.hashCode();
+		}
+
+		@Override
+		public String toString()
+		{
+			return real.toString();
+		}
+	}
+
+	/**
+	 * Provider which adds the delay and failures, then calls the real provider.
+	 */
+	private class Provider extends FileSystemProvider
+	{
+		private FileSystemProvider realProvider()
+		{
+			return real.provider();
+		}
+
+		@Override
+		public String getScheme()
+		{
+			return "slow";
+		}
+
+		@Override
+		public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public FileSystem getFileSystem(URI uri)
+		{
+			return SlowFileSystem.this;
+		}
+
+		@Override
+		public Path getPath(URI uri)
+		{
+			return wrap(realProvider().getPath(uri));
+		}
+
+		@Override
+		public SeekableByteChannel newByteChannel(Path path,
+			Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException
+		{
+			operation(options.contains(StandardOpenOption.WRITE)
+				|| options.contains(StandardOpenOption.APPEND));
+			return realProvider().newByteChannel(unwrap(path), options, attrs);
+		}
+
+		@Override
+		public DirectoryStream<Path> newDirectoryStream(Path dir,
+			final DirectoryStream.Filter<? super Path> filter) throws IOException
+		{
+			operation(false);
+			final DirectoryStream<Path> stream = realProvider().newDirectoryStream(
+				unwrap(dir), new DirectoryStream.Filter<Path>()
+				{
+					@Override
+					public boolean accept(Path entry) throws IOException
+					{
+						return filter.accept(wrap(entry));
+					}
+				});
+			return new DirectoryStream<Path>()
+			{
+				@Override
+				public void close() throws IOException
+				{
+					stream.close();
+				}
+
+				@Override
+				public Iterator<Path> iterator()
+				{
+					final Iterator<Path> entries = stream.iterator();
+					return new Iterator<Path>()
+					{
+						@Override
+						public boolean hasNext()
+						{
+							return entries.hasNext();
+						}
+
+						@Override
+						public Path next()
+						{
+							return wrap(entries.next());
+						}
+
+						@Override
+						public void remove()
+						{
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+
+		@Override
+		public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException
+		{
+			operation(true);
+			realProvider().createDirectory(unwrap(dir), attrs);
+		}
+
+		@Override
+		public void delete(Path path) throws IOException
+		{
+			operation(true);
+			realProvider().delete(unwrap(path));
+		}
+
+		@Override
+		public void copy(Path source, Path target, CopyOption... options) throws IOException
+		{
+			operation(true);
+			realProvider().copy(unwrap(source), unwrap(target), options);
+		}
+
+		@Override
+		public void move(Path source, Path target, CopyOption... options) throws IOException
+		{
+			operation(true);
+			realProvider().move(unwrap(source), unwrap(target), options);
+		}
+
+		@Override
+		public boolean isSameFile(Path path, Path path2) throws IOException
+		{
+			operation(false);
+			return realProvider().isSameFile(unwrap(path), unwrap(path2));
+		}
+
+		@Override
+		public boolean isHidden(Path path) throws IOException
+		{
+			return realProvider().isHidden(unwrap(path));
+		}
+
+		@Override
+		public FileStore getFileStore(Path path) throws IOException
+		{
+			return realProvider().getFileStore(unwrap(path));
+		}
+
+		@Override
+		public void checkAccess(Path path, AccessMode... modes) throws IOException
+		{
+			operation(false);
+			realProvider().checkAccess(unwrap(path), modes);
+		}
+
+		@Override
+		public <V extends FileAttributeView> V getFileAttributeView(Path path,
+			Class<V> type, LinkOption... options)
+		{
+			return realProvider().getFileAttributeView(unwrap(path), type, options);
+		}
+
+		@Override
+		public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type,
+			LinkOption... options) throws IOException
+		{
+			operation(false);
+			return realProvider().readAttributes(unwrap(path), type, options);
+		}
+
+		@Override
+		public Map<String, Object> readAttributes(Path path, String attributes,
+			LinkOption... options) throws IOException
+		{
+			operation(false);
+			return realProvider().readAttributes(unwrap(path), attributes, options);
+		}
+
+		@Override
+		public void setAttribute(Path path, String attribute, Object value,
+			LinkOption... options) throws IOException
+		{
+			operation(true);
+			realProvider().setAttribute(unwrap(path), attribute, value, options);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.*;
+
+import org.junit.jupiter.api.Test;
+
+public class TargetCacheTest
+{
+	private static Path path(String path)
+	{
+		return Paths.get(path);
+	}
+
+	@Test
+	void fileMarksParents()
+	{
+		TargetCache cache = new TargetCache();
+		assertNull(cache.get(path("a/b.txt")));
+		cache.file(path("a/b.txt"));
+		assertEquals(TargetCache.State.FILE, cache.get(path("a/b.txt")));
+		assertEquals(TargetCache.State.FOLDER, cache.get(path("a")));
+		assertEquals(TargetCache.State.FOLDER, cache.get(path(".")));
+	}
+
+	@Test
+	void removedForgetsContents()
+	{
+		TargetCache cache = new TargetCache();
+		cache.file(path("a/b/c.txt"));
+		cache.file(path("ab.txt"));
+		cache.removed(path("a"));
+		assertEquals(TargetCache.State.ABSENT, cache.get(path("a")));
+		assertNull(cache.get(path("a/b")));
+		assertNull(cache.get(path("a/b/c.txt")));
+		assertEquals(TargetCache.State.FILE, cache.get(path("ab.txt")));
+
+		// Emptying the root leaves the root itself
+		cache.removed(path("."));
+		assertNull(cache.get(path("ab.txt")));
+		assertEquals(TargetCache.State.FOLDER, cache.get(path("")));
+	}
+}
@@ -0,0 +1,144 @@
+package uk.ac.open.lts.filecopier;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Owner for real watchers, with its own queue on a test clock. Output is
+ * kept as plain text.
+ */
+public class TestOwner implements ActionQueue.Handler, Watcher.Owner
+{
+	private final StringBuilder output = new StringBuilder();
+	private final ActionQueue queue;
+	private volatile boolean error;
+	private final Verifier verifier = new Verifier();
+	private final Throttle bulkThrottle = Throttle.create(new Options((Options)null),
+		Options.BULK_BYTES, Options.BULK_FILES, null);
+	private final Throttle interactiveThrottle = Throttle.create(
+		new Options((Options)null), Options.INTERACTIVE_BYTES, Options.INTERACTIVE_FILES, null);
+
+	/**
+	 * @param clock Clock for the queue
+	 */
+	TestOwner(Clock clock)
+	{
+		queue = new ActionQueue(this, clock);
+	}
+
+	@Override
+	public void markBusy()
+	{
+	}
+
+	@Override
+	public void markIdle()
+	{
+	}
+
+	@Override
+	public void markError()
+	{
+		error = true;
+	}
+
+	/**
+	 * @return True if the queue or a watcher reported an error
+	 */
+	boolean hadError()
+	{
+		return error;
+	}
+
+	@Override
+	public void addText(String text)
+	{
+		synchronized(output)
+		{
+			output.append(text);
+		}
+	}
+
+	@Override
+	public void addText(String text, String style)
+	{
+		addText(text);
+	}
+
+	@Override
+	public void addError(String start, String text)
+	{
+		addText(start + (text == null ? "" : text) + "\n");
+	}
+
+	@Override
+	public ActionQueue getQueue()
+	{
+		return queue;
+	}
+
+	@Override
+	public Verifier getVerifier()
+	{
+		return verifier;
+	}
+
+	@Override
+	public Object getStartupSynch()
+	{
+		return this;
+	}
+
+	@Override
+	public void startupFinished(Watcher watcher)
+	{
+	}
+
+	@Override
+	public Throttle getBulkThrottle()
+	{
+		return bulkThrottle;
+	}
+
+	@Override
+	public Throttle getInteractiveThrottle()
+	{
+		return interactiveThrottle;
+	}
+
+	/**
+	 * @return Everything added to the output, without styles
+	 */
+	String getOutput()
+	{
+		synchronized(output)
+		{
+			return output.toString();
+		}
+	}
+
+	/**
+	 * Creates a watcher for a source and one target, without starting it.
+	 * @param source Source folder
+	 * @param target Target folder
+	 * @return Watcher
+	 */
+	Watcher watch(Path source, Path target)
+	{
+		return watch(source, target, new Options((Options)null));
+	}
+
+	/**
+	 * Creates a watcher for a source and one target, without starting it.
+	 * @param source Source folder
+	 * @param target Target folder
+	 * @param options Settings for the target
+	 * @return Watcher
+	 */
+	Watcher watch(Path source, Path target, Options options)
+	{
+		List<Target> targets = new ArrayList<Target>();
+		targets.add(new Target(this, target, options));
+		return new Watcher(this, source, targets, "c0", 1, false);
+	}
+}
@@ -0,0 +1,148 @@
+package uk.ac.open.lts.filecopier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.io.*;
+import java.nio.file.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WatcherTest
+{
+	@TempDir
+	Path temp;
+
+	private String oldHome;
+
+	@BeforeEach
+	void setHome() throws IOException
+	{
+		oldHome = System.getProperty("user.home");
+		System.setProperty("user.home", Files.createDirectory(temp.resolve("home")).toString());
+	}
+
+	@AfterEach
+	void restoreHome()
+	{
+		System.setProperty("user.home", oldHome);
+	}
+
+	@Test
+	void editorTempFiles()
+	{
+		assertTrue(Watcher.isEditorTemp(new File("lib/4913").toPath()));
+		assertTrue(Watcher.isEditorTemp(new File("lib/5036").toPath()));
+		assertTrue(Watcher.isEditorTemp(new File("lib/weblib.php~").toPath()));
+		assertTrue(Watcher.isEditorTemp(new File("weblib.php___jb_tmp___").toPath()));
+		assertTrue(Watcher.isEditorTemp(new File("weblib.php___jb_old___").toPath()));
+	}
+
+	@Test
+	void normalFiles()
+	{
+		assertFalse(Watcher.isEditorTemp(new File("lib/weblib.php").toPath()));
+		assertFalse(Watcher.isEditorTemp(new File("lib/4914").toPath()));
+		assertFalse(Watcher.isEditorTemp(new File("lib/2024").toPath()));
+		assertFalse(Watcher.isEditorTemp(new File("").toPath()));
+	}
+
+	@Test
+	void editorTempDeletedSoonIsIgnored() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		TestOwner owner = new TestOwner(new ManualClock());
+		Watcher watcher = owner.watch(source, Files.createDirectory(temp.resolve("target")));
+		PathNode node = watcher.getPaths().lookup(Paths.get("4913"));
+
+		// The target cache has never seen this name, but it can't have been
+		// copied because it is still held
+		ActionQueue.Batch batch = owner.getQueue().newBatch(watcher);
+		Files.write(source.resolve("4913"), new byte[0]);
+		watcher.addEvent(node, StandardWatchEventKinds.ENTRY_CREATE, batch);
+		Files.delete(source.resolve("4913"));
+		watcher.addEvent(node, StandardWatchEventKinds.ENTRY_DELETE, batch);
+		owner.getQueue().add(batch);
+		assertEquals(0, owner.getQueue().getDepth());
+	}
+
+	@Test
+	void editorTempOnTargetIsDeleted() throws Exception
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		TestOwner owner = new TestOwner(new ManualClock());
+		Watcher watcher = owner.watch(source, Files.createDirectory(temp.resolve("target")));
+		PathNode node = watcher.getPaths().lookup(Paths.get("4913"));
+		watcher.getTargets().get(0).getCache().file(Paths.get("4913"));
+
+		ActionQueue.Batch batch = owner.getQueue().newBatch(watcher);
+		watcher.addEvent(node, StandardWatchEventKinds.ENTRY_CREATE, batch);
+		watcher.addEvent(node, StandardWatchEventKinds.ENTRY_DELETE, batch);
+		owner.getQueue().add(batch);
+		assertEquals(1, owner.getQueue().getDepth());
+	}
+
+	@Test
+	void overflowInGitModeScansSource() throws Exception
+	{
+		Path source = createGitSource();
+		TestOwner owner = new TestOwner(new ManualClock());
+		Options options = new Options((Options)null);
+		options.set(Options.CATCH_UP, Options.CATCH_UP_GIT);
+		Watcher watcher = owner.watch(source, Files.createDirectory(temp.resolve("target")),
+			options);
+		assertTrue(watcher.checkSync());
+
+		// Untracked files aren't in the git index, so after an overflow the
+		// check has to scan the source to find them
+		Files.write(source.resolve("untracked.txt"), new byte[] { 1 });
+		watcher.addEvent(null, StandardWatchEventKinds.OVERFLOW,
+			owner.getQueue().newBatch(watcher));
+		int before = owner.getOutput().length();
+		assertTrue(watcher.checkSync());
+		String output = owner.getOutput().substring(before);
+		assertTrue(output.contains(" - Scan source"), output);
+		assertTrue(output.contains(" 1 differences"), output);
+	}
+
+	@Test
+	void knownSourceInGitModeSkipsIndex() throws Exception
+	{
+		Path source = createGitSource();
+		TestOwner owner = new TestOwner(new ManualClock());
+		Options options = new Options((Options)null);
+		options.set(Options.CATCH_UP, Options.CATCH_UP_GIT);
+		Watcher watcher = owner.watch(source, Files.createDirectory(temp.resolve("target")),
+			options);
+		assertTrue(watcher.checkSync());
+
+		// Once the source tree is known, it is used rather than the index,
+		// which doesn't list untracked files
+		Files.write(source.resolve("untracked.txt"), new byte[] { 1 });
+		watcher.addEvent(watcher.getPaths().lookup(Paths.get("untracked.txt")),
+			StandardWatchEventKinds.ENTRY_CREATE, owner.getQueue().newBatch(watcher));
+		int before = owner.getOutput().length();
+		assertTrue(watcher.checkSync());
+		String output = owner.getOutput().substring(before);
+		assertFalse(output.contains(" - Git index"), output);
+		assertTrue(output.contains(" 1 differences"), output);
+	}
+
+	/**
+	 * @return Source folder that is a git working copy with nothing tracked
+	 */
+	private Path createGitSource() throws IOException
+	{
+		Path source = Files.createDirectory(temp.resolve("source"));
+		Files.createDirectory(source.resolve(".git"));
+		try(DataOutputStream out = new DataOutputStream(
+			Files.newOutputStream(source.resolve(".git/index"))))
+		{
+			out.writeBytes("DIRC");
+			out.writeInt(2);
+			out.writeInt(0);
+		}
+		return source;
+	}
+}